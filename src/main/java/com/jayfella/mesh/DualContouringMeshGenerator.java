@@ -0,0 +1,741 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.marchingcubes.RangedDensityVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+
+import java.util.Arrays;
+
+/**
+ *  Takes a density field and generates meshes for it using Dual
+ *  Contouring.  Every edge that the surface crosses contributes Hermite
+ *  data, the crossing point and the DensityVolume.getFieldDirection()
+ *  normal there, to the cells around it.  Each cell's vertex is placed by
+ *  solving the quadratic error function (QEF) of its Hermite data, which
+ *  puts the vertex on the sharp corners and edges of the surface instead
+ *  of bevelling them, and every crossed edge gets a quad joining the
+ *  vertexes of the four cells around it.
+ *
+ *  <p>With a simplification error set, the cells are grouped into an
+ *  octree and any node whose combined QEF can be solved within that error
+ *  is collapsed into a single vertex, which removes the triangles of flat
+ *  and gently curved regions.  Nodes that touch the chunk's outer cells
+ *  are never collapsed so neighbouring chunks still share their boundary
+ *  vertexes.  Collapsing does not check the topology of the node so a
+ *  large error can join separate parts of the surface.</p>
+ *
+ *  <p>Chunks join the same way as for SurfaceNetsMeshGenerator.  Because
+ *  the field directions are sampled between the border corners, the
+ *  volume needs a border of two corners, see getRequiredVolumeSize().
+ *  As with MarchingCubesMeshGenerator, the scratch state of a build is
+ *  kept in a Context taken from a pool shared by all generators of the
+ *  same chunk size, so one generator can run any number of builds at the
+ *  same time as long as its settings are not changed meanwhile.</p>
+ */
+public class DualContouringMeshGenerator {
+
+    // QEF layout: ATA xx, xy, xz, yy, yz, zz, ATb x, y, z, btb,
+    // mass point sum x, y, z, count, normal sum x, y, z
+    private static final int QEF_SIZE = 17;
+    private static final int QEF_COUNT = 13;
+    private static final int QEF_NORMAL = 14;
+
+    /**
+     *  Eigenvalues of ATA below this fraction of the largest are treated
+     *  as zero when solving the QEF, which keeps the vertex at the mass
+     *  point along directions that the normals do not constrain.
+     */
+    private static final double EIGEN_TOLERANCE = 0.01;
+
+    /**
+     *  The scratch contexts shared by all generators, by chunk size.
+     */
+    private static final ScratchPool<Context> CONTEXTS = new ScratchPool<>();
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final long sizeClass;
+
+    // Corners from -1 to size
+    private final int cornersX;
+    private final int cornersXY;
+    private final int cornerCount;
+
+    // Cells from -1 to size - 1
+    private final int cellsX;
+    private final int cellsXY;
+    private final int cellCount;
+
+    private float xzScale = 1;
+    private float voxelSize = 1;
+    private float simplifyError;
+
+    /**
+     *  Creates a Dual Contouring based mesh generator that will
+     *  generate chunks of the specified size.
+     */
+    public DualContouringMeshGenerator( int cx, int cy, int cz ) {
+        this(cx, cy, cz, 1);
+    }
+
+    /**
+     *  Creates a Dual Contouring based mesh generator that will generate
+     *  chunks of the specified size with an extra x, z scale applied to
+     *  the resulting mesh, the same as the MarchingCubesMeshGenerator
+     *  xzScale.
+     */
+    public DualContouringMeshGenerator( int cx, int cy, int cz, float xzScale ) {
+        this.sizeX = cx;
+        this.sizeY = cy;
+        this.sizeZ = cz;
+        this.sizeClass = ScratchPool.sizeClass(cx, cy, cz);
+        this.xzScale = xzScale;
+        this.cornersX = cx + 2;
+        this.cornersXY = cornersX * (cy + 2);
+        this.cornerCount = cornersXY * (cz + 2);
+        this.cellsX = cx + 1;
+        this.cellsXY = cellsX * (cy + 1);
+        this.cellCount = cellsXY * (cz + 1);
+    }
+
+    /**
+     *  Returns the size of the volume that buildMesh() requires.  The mesh
+     *  is extracted from 0 to size but the volume needs a border of two
+     *  corners on every side, ie: it must support queries from -2 to
+     *  size + 2, because the field directions of the border edges are
+     *  sampled by the volume from their neighbouring corners.
+     */
+    public int[] getRequiredVolumeSize() {
+        return new int[]{ sizeX + 4, sizeY + 4, sizeZ + 4 };
+    }
+
+    public Vector3f getGenerationSize() {
+        return new Vector3f(sizeX * xzScale * voxelSize, sizeY * voxelSize, sizeZ * xzScale * voxelSize);
+    }
+
+    public void setXzScale( float s ) {
+        this.xzScale = s;
+    }
+
+    public float getXzScale() {
+        return xzScale;
+    }
+
+    /**
+     *  Sets the size of one cell in the generated mesh, the same as
+     *  MarchingCubesMeshGenerator.setVoxelSize().  Defaults to 1.
+     */
+    public void setVoxelSize( float voxelSize ) {
+        if( voxelSize <= 0 ) {
+            throw new IllegalArgumentException("Voxel size must be positive:" + voxelSize);
+        }
+        this.voxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     *  Sets the largest QEF error, in squared cells summed over a node's
+     *  Hermite points, for which an octree node of cells is collapsed into
+     *  one vertex.  0 disables simplification, which is the default.
+     */
+    public void setSimplifyError( float simplifyError ) {
+        if( simplifyError < 0 ) {
+            throw new IllegalArgumentException("Simplify error cannot be negative:" + simplifyError);
+        }
+        this.simplifyError = simplifyError;
+    }
+
+    public float getSimplifyError() {
+        return simplifyError;
+    }
+
+    private static boolean solid( float value ) {
+        return value > 0;
+    }
+
+    /**
+     *  Creates a new scratch context for the builds of this generator and
+     *  of any other generator of the same size, see
+     *  MarchingCubesMeshGenerator.createContext().
+     */
+    public Context createContext() {
+        return new Context(this);
+    }
+
+    private Context acquireContext() {
+        return CONTEXTS.acquire(sizeClass, this::createContext);
+    }
+
+    private void releaseContext( Context context ) {
+        CONTEXTS.release(sizeClass, context);
+    }
+
+    /**
+     *  Builds a mesh from the specified volume.  Returns null if the
+     *  volume produced no geometry.
+     */
+    public Mesh buildMesh( DensityVolume volume ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return null;
+            }
+            return context.arrays.createMesh();
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume directly into the
+     *  specified primitive arrays, replacing their current contents.
+     *  Returns false if the volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target ) {
+        Context context = acquireContext();
+        try {
+            return buildMesh(volume, target, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume into the specified
+     *  primitive arrays using the specified scratch context, which must
+     *  have been created by a generator of the same size and must not be
+     *  used by another build at the same time.  Returns false if the
+     *  volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target, Context context ) {
+        if( context.sizeClass != sizeClass ) {
+            throw new IllegalArgumentException("Context was created for a different chunk size");
+        }
+
+        target.clear();
+        if( volume instanceof RangedDensityVolume ) {
+            // All of the corners that the cells use
+            float[] r = ((RangedDensityVolume)volume).getDensityRange(1, 1, 1, sizeX + 2, sizeY + 2,
+                                                                      sizeZ + 2, context.range);
+            if( r[0] > 0 || r[1] <= 0 ) {
+                return false;
+            }
+        }
+
+        sampleCorners(volume, context);
+        findEdges(volume, context);
+        if( !accumulateCells(context) ) {
+            return false;
+        }
+
+        Arrays.fill(context.cellVertexes, -1);
+        if( simplifyError > 0 ) {
+            simplify(context, target);
+        }
+        emitQuads(context, target);
+
+        if( target.getIndexCount() == 0 ) {
+            target.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private int corner( int x, int y, int z ) {
+        return (z + 1) * cornersXY + (y + 1) * cornersX + x + 1;
+    }
+
+    private int cell( int x, int y, int z ) {
+        return (z + 1) * cellsXY + (y + 1) * cellsX + x + 1;
+    }
+
+    private void sampleCorners( DensityVolume volume, Context context ) {
+        // Corners -1 to size, shifted by the volume border of 2
+        volume.sample(1, 1, 1, sizeX + 2, sizeY + 2, sizeZ + 2, context.densities, 0);
+    }
+
+    /**
+     *  Calculates the Hermite data of every crossed edge: the crossing
+     *  point in chunk space followed by the field direction there.
+     */
+    private void findEdges( DensityVolume volume, Context context ) {
+        float[] densities = context.densities;
+        int[] edgeSlots = context.edgeSlots;
+        float[] edgeData = context.edgeData;
+        Arrays.fill(edgeSlots, -1);
+        int count = 0;
+        for( int z = -1; z <= sizeZ; z++ ) {
+            for( int y = -1; y <= sizeY; y++ ) {
+                for( int x = -1; x <= sizeX; x++ ) {
+                    int c = corner(x, y, z);
+                    float d1 = densities[c];
+                    for( int axis = 0; axis < 3; axis++ ) {
+                        int step = axis == 0 ? 1 : axis == 1 ? cornersX : cornersXY;
+                        int end = axis == 0 ? x : axis == 1 ? y : z;
+                        if( end == (axis == 0 ? sizeX : axis == 1 ? sizeY : sizeZ) ) {
+                            continue;
+                        }
+                        float d2 = densities[c + step];
+                        if( solid(d1) == solid(d2) ) {
+                            continue;
+                        }
+                        float part = Math.abs(d1) / Math.abs(d2 - d1);
+                        float px = axis == 0 ? x + part : x;
+                        float py = axis == 1 ? y + part : y;
+                        float pz = axis == 2 ? z + part : z;
+                        Vector3f norm = volume.getFieldDirection(px + 2, py + 2, pz + 2, context.tempNormal);
+
+                        int slot = count * 6;
+                        if( slot + 6 > edgeData.length ) {
+                            edgeData = Arrays.copyOf(edgeData, edgeData.length * 2);
+                            context.edgeData = edgeData;
+                        }
+                        edgeData[slot] = px;
+                        edgeData[slot + 1] = py;
+                        edgeData[slot + 2] = pz;
+                        edgeData[slot + 3] = norm.x;
+                        edgeData[slot + 4] = norm.y;
+                        edgeData[slot + 5] = norm.z;
+                        edgeSlots[c * 3 + axis] = slot;
+                        count++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Accumulates the QEF of every cell from the Hermite data of its
+     *  edges.  Returns false if no cell is crossed by the surface.
+     */
+    private boolean accumulateCells( Context context ) {
+        int[] cellSlots = context.cellSlots;
+        int[] edgeSlots = context.edgeSlots;
+        float[] edgeData = context.edgeData;
+        float[] cellQefs = context.cellQefs;
+        Arrays.fill(cellSlots, -1);
+        int count = 0;
+        for( int z = -1; z < sizeZ; z++ ) {
+            for( int y = -1; y < sizeY; y++ ) {
+                for( int x = -1; x < sizeX; x++ ) {
+                    int q = -1;
+                    for( int i = 0; i < 12; i++ ) {
+                        int axis = i >> 2;
+                        int a = (i & 1);
+                        int b = (i >> 1) & 1;
+                        // The two offsets perpendicular to the edge's axis
+                        int ox = axis == 0 ? 0 : a;
+                        int oy = axis == 1 ? 0 : axis == 0 ? a : b;
+                        int oz = axis == 2 ? 0 : b;
+                        int slot = edgeSlots[corner(x + ox, y + oy, z + oz) * 3 + axis];
+                        if( slot < 0 ) {
+                            continue;
+                        }
+                        if( q < 0 ) {
+                            q = count * QEF_SIZE;
+                            if( q + QEF_SIZE > cellQefs.length ) {
+                                cellQefs = Arrays.copyOf(cellQefs, cellQefs.length * 2);
+                                context.cellQefs = cellQefs;
+                            }
+                            Arrays.fill(cellQefs, q, q + QEF_SIZE, 0);
+                            cellSlots[cell(x, y, z)] = q;
+                            count++;
+                        }
+                        addPlane(cellQefs, q, edgeData, slot);
+                    }
+                }
+            }
+        }
+        return count > 0;
+    }
+
+    private static void addPlane( float[] qef, int q, float[] edge, int e ) {
+        float px = edge[e];
+        float py = edge[e + 1];
+        float pz = edge[e + 2];
+        float nx = edge[e + 3];
+        float ny = edge[e + 4];
+        float nz = edge[e + 5];
+        float d = nx * px + ny * py + nz * pz;
+        qef[q] += nx * nx;
+        qef[q + 1] += nx * ny;
+        qef[q + 2] += nx * nz;
+        qef[q + 3] += ny * ny;
+        qef[q + 4] += ny * nz;
+        qef[q + 5] += nz * nz;
+        qef[q + 6] += nx * d;
+        qef[q + 7] += ny * d;
+        qef[q + 8] += nz * d;
+        qef[q + 9] += d * d;
+        qef[q + 10] += px;
+        qef[q + 11] += py;
+        qef[q + 12] += pz;
+        qef[q + QEF_COUNT] += 1;
+        qef[q + QEF_NORMAL] += nx;
+        qef[q + QEF_NORMAL + 1] += ny;
+        qef[q + QEF_NORMAL + 2] += nz;
+    }
+
+    private static void addQef( float[] target, int t, float[] source, int s ) {
+        for( int i = 0; i < QEF_SIZE; i++ ) {
+            target[t + i] += source[s + i];
+        }
+    }
+
+    /**
+     *  Solves the QEF at the specified offset into the solution, relative
+     *  to its mass point using the pseudo-inverse of ATA, and returns the
+     *  error at the solution.
+     */
+    private static double solve( float[] qef, int q, Context context ) {
+        double count = qef[q + QEF_COUNT];
+        double mx = qef[q + 10] / count;
+        double my = qef[q + 11] / count;
+        double mz = qef[q + 12] / count;
+
+        double[] a = context.matrix;
+        double[] vectors = context.vectors;
+        a[0] = qef[q];
+        a[1] = a[3] = qef[q + 1];
+        a[2] = a[6] = qef[q + 2];
+        a[4] = qef[q + 3];
+        a[5] = a[7] = qef[q + 4];
+        a[8] = qef[q + 5];
+
+        // ATb - ATA * massPoint
+        double rx = qef[q + 6] - (a[0] * mx + a[1] * my + a[2] * mz);
+        double ry = qef[q + 7] - (a[3] * mx + a[4] * my + a[5] * mz);
+        double rz = qef[q + 8] - (a[6] * mx + a[7] * my + a[8] * mz);
+
+        eigen(a, vectors);
+        double max = Math.max(Math.abs(a[0]), Math.max(Math.abs(a[4]), Math.abs(a[8])));
+        double sx = mx;
+        double sy = my;
+        double sz = mz;
+        for( int i = 0; i < 3; i++ ) {
+            double value = a[i * 4];
+            if( max == 0 || Math.abs(value) < EIGEN_TOLERANCE * max ) {
+                continue;
+            }
+            double vx = vectors[i];
+            double vy = vectors[3 + i];
+            double vz = vectors[6 + i];
+            double scale = (vx * rx + vy * ry + vz * rz) / value;
+            sx += vx * scale;
+            sy += vy * scale;
+            sz += vz * scale;
+        }
+        double[] solution = context.solution;
+        solution[0] = sx;
+        solution[1] = sy;
+        solution[2] = sz;
+
+        double ax = qef[q] * sx + qef[q + 1] * sy + qef[q + 2] * sz;
+        double ay = qef[q + 1] * sx + qef[q + 3] * sy + qef[q + 4] * sz;
+        double az = qef[q + 2] * sx + qef[q + 4] * sy + qef[q + 5] * sz;
+        double error = sx * ax + sy * ay + sz * az
+                     - 2 * (sx * qef[q + 6] + sy * qef[q + 7] + sz * qef[q + 8])
+                     + qef[q + 9];
+        return Math.max(0, error);
+    }
+
+    /**
+     *  Diagonalizes the symmetric row-major 3x3 matrix in place with
+     *  Jacobi rotations, leaving the eigenvalues on the diagonal and the
+     *  eigenvectors in the columns of vectors.
+     */
+    private static void eigen( double[] a, double[] v ) {
+        Arrays.fill(v, 0);
+        v[0] = v[4] = v[8] = 1;
+        for( int sweep = 0; sweep < 8; sweep++ ) {
+            double off = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+            if( off < 1e-20 ) {
+                return;
+            }
+            rotate(a, v, 0, 1);
+            rotate(a, v, 0, 2);
+            rotate(a, v, 1, 2);
+        }
+    }
+
+    private static void rotate( double[] a, double[] v, int p, int q ) {
+        double apq = a[p * 3 + q];
+        if( Math.abs(apq) < 1e-30 ) {
+            return;
+        }
+        double app = a[p * 4];
+        double aqq = a[q * 4];
+        double theta = (aqq - app) / (2 * apq);
+        double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+        if( theta == 0 ) {
+            t = 1;
+        }
+        double c = 1 / Math.sqrt(t * t + 1);
+        double s = t * c;
+        for( int k = 0; k < 3; k++ ) {
+            double akp = a[k * 3 + p];
+            double akq = a[k * 3 + q];
+            a[k * 3 + p] = c * akp - s * akq;
+            a[k * 3 + q] = s * akp + c * akq;
+        }
+        for( int k = 0; k < 3; k++ ) {
+            double apk = a[p * 3 + k];
+            double aqk = a[q * 3 + k];
+            a[p * 3 + k] = c * apk - s * aqk;
+            a[q * 3 + k] = s * apk + c * aqk;
+        }
+        for( int k = 0; k < 3; k++ ) {
+            double vkp = v[k * 3 + p];
+            double vkq = v[k * 3 + q];
+            v[k * 3 + p] = c * vkp - s * vkq;
+            v[k * 3 + q] = s * vkp + c * vkq;
+        }
+    }
+
+    /**
+     *  Adds a vertex for the specified QEF, which covers the box of cells
+     *  from (x, y, z) of size s.  If the solution falls outside of the box
+     *  then the mass point is used instead.
+     */
+    private int addVertex( float[] qef, int q, int x, int y, int z, int s, Context context,
+                           MeshArrays target ) {
+        solve(qef, q, context);
+        double px = context.solution[0];
+        double py = context.solution[1];
+        double pz = context.solution[2];
+        if( px < x || py < y || pz < z || px > x + s || py > y + s || pz > z + s ) {
+            double count = qef[q + QEF_COUNT];
+            px = qef[q + 10] / count;
+            py = qef[q + 11] / count;
+            pz = qef[q + 12] / count;
+        }
+
+        Vector3f norm = context.tempNormal.set(qef[q + QEF_NORMAL], qef[q + QEF_NORMAL + 1],
+                                               qef[q + QEF_NORMAL + 2]);
+        norm.normalizeLocal();
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+        return target.addVertex((float)px * xzScale * voxelSize, (float)py * voxelSize,
+                                (float)pz * xzScale * voxelSize, norm.x, norm.y, norm.z);
+    }
+
+    private int getCellVertex( int x, int y, int z, Context context, MeshArrays target ) {
+        int c = cell(x, y, z);
+        int vert = context.cellVertexes[c];
+        if( vert < 0 ) {
+            vert = addVertex(context.cellQefs, context.cellSlots[c], x, y, z, 1, context, target);
+            context.cellVertexes[c] = vert;
+        }
+        return vert;
+    }
+
+    /**
+     *  Collapses the octree nodes of the chunk whose QEF error is within
+     *  the simplification error, giving all of their cells the node's
+     *  vertex.  Vertexes are added to the shared arrays as nodes are
+     *  collapsed.
+     */
+    private void simplify( Context context, MeshArrays target ) {
+        int size = 1;
+        int depth = 1;
+        while( size < Math.max(sizeX, Math.max(sizeY, sizeZ)) ) {
+            size *= 2;
+            depth++;
+        }
+        if( context.nodeQefs.length < depth ) {
+            context.nodeQefs = new float[depth][QEF_SIZE];
+            context.childQefs = new float[depth][QEF_SIZE * 8];
+            context.childCollapsible = new boolean[depth][8];
+        }
+        simplifyNode(0, 0, 0, size, 0, context, target);
+    }
+
+    /**
+     *  Returns true if the specified node can be collapsed, leaving its
+     *  combined QEF in nodeQefs[depth].  Otherwise the collapsible child
+     *  nodes are given their own vertexes.
+     */
+    private boolean simplifyNode( int x, int y, int z, int s, int depth, Context context,
+                                  MeshArrays target ) {
+        float[][] nodeQefs = context.nodeQefs;
+        float[] qef = nodeQefs[depth];
+        Arrays.fill(qef, 0);
+        if( s == 1 ) {
+            int q = context.cellSlots[cell(x, y, z)];
+            if( q >= 0 ) {
+                addQef(qef, 0, context.cellQefs, q);
+            }
+            return true;
+        }
+
+        int half = s / 2;
+        boolean all = true;
+        float[] children = context.childQefs[depth];
+        boolean[] collapsible = context.childCollapsible[depth];
+        for( int i = 0; i < 8; i++ ) {
+            int cx = x + (i & 1) * half;
+            int cy = y + ((i >> 1) & 1) * half;
+            int cz = z + ((i >> 2) & 1) * half;
+            collapsible[i] = false;
+            if( cx >= sizeX || cy >= sizeY || cz >= sizeZ ) {
+                continue;
+            }
+            if( !simplifyNode(cx, cy, cz, half, depth + 1, context, target) ) {
+                all = false;
+                continue;
+            }
+            collapsible[i] = true;
+            System.arraycopy(nodeQefs[depth + 1], 0, children, i * QEF_SIZE, QEF_SIZE);
+            addQef(qef, 0, nodeQefs[depth + 1], 0);
+        }
+
+        if( all ) {
+            if( qef[QEF_COUNT] == 0 ) {
+                return true;
+            }
+            // The outer cells are shared with the neighbouring chunks
+            boolean interior = x > 0 && y > 0 && z > 0
+                            && x + s < sizeX && y + s < sizeY && z + s < sizeZ;
+            if( interior && solve(qef, 0, context) <= simplifyError ) {
+                double px = context.solution[0];
+                double py = context.solution[1];
+                double pz = context.solution[2];
+                if( px >= x && py >= y && pz >= z && px <= x + s && py <= y + s && pz <= z + s ) {
+                    return true;
+                }
+            }
+        }
+
+        // This node stays split so its collapsible children become leaves
+        for( int i = 0; i < 8; i++ ) {
+            if( !collapsible[i] || half == 1 || children[i * QEF_SIZE + QEF_COUNT] == 0 ) {
+                continue;
+            }
+            int cx = x + (i & 1) * half;
+            int cy = y + ((i >> 1) & 1) * half;
+            int cz = z + ((i >> 2) & 1) * half;
+            int vert = addVertex(children, i * QEF_SIZE, cx, cy, cz, half, context, target);
+            assignVertex(cx, cy, cz, half, vert, context);
+        }
+        return false;
+    }
+
+    private void assignVertex( int x, int y, int z, int s, int vert, Context context ) {
+        for( int k = z; k < Math.min(z + s, sizeZ); k++ ) {
+            for( int j = y; j < Math.min(y + s, sizeY); j++ ) {
+                for( int i = x; i < Math.min(x + s, sizeX); i++ ) {
+                    int c = cell(i, j, k);
+                    if( context.cellSlots[c] >= 0 ) {
+                        context.cellVertexes[c] = vert;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Emits a quad for every crossed edge that starts at one of the
+     *  chunk's own corners, joining the vertexes of the four cells
+     *  around it.  Triangles of collapsed cells that share a vertex are
+     *  dropped.
+     */
+    private void emitQuads( Context context, MeshArrays target ) {
+        float[] densities = context.densities;
+        int[] edgeSlots = context.edgeSlots;
+        for( int z = 0; z < sizeZ; z++ ) {
+            for( int y = 0; y < sizeY; y++ ) {
+                for( int x = 0; x < sizeX; x++ ) {
+                    int c = corner(x, y, z);
+                    boolean inside = solid(densities[c]);
+                    if( edgeSlots[c * 3] >= 0 ) {
+                        addQuad(getCellVertex(x, y - 1, z - 1, context, target),
+                                getCellVertex(x, y, z - 1, context, target),
+                                getCellVertex(x, y, z, context, target),
+                                getCellVertex(x, y - 1, z, context, target),
+                                inside, target);
+                    }
+                    if( edgeSlots[c * 3 + 1] >= 0 ) {
+                        addQuad(getCellVertex(x - 1, y, z - 1, context, target),
+                                getCellVertex(x - 1, y, z, context, target),
+                                getCellVertex(x, y, z, context, target),
+                                getCellVertex(x, y, z - 1, context, target),
+                                inside, target);
+                    }
+                    if( edgeSlots[c * 3 + 2] >= 0 ) {
+                        addQuad(getCellVertex(x - 1, y - 1, z, context, target),
+                                getCellVertex(x, y - 1, z, context, target),
+                                getCellVertex(x, y, z, context, target),
+                                getCellVertex(x - 1, y, z, context, target),
+                                inside, target);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Adds the quad for the specified cells, which wind counter-clockwise
+     *  around the edge's direction, so that it faces away from the solid
+     *  end of the edge.
+     */
+    private void addQuad( int a, int b, int c, int d, boolean startSolid, MeshArrays target ) {
+        if( !startSolid ) {
+            addTriangle(a, c, b, target);
+            addTriangle(a, d, c, target);
+        } else {
+            addTriangle(a, b, c, target);
+            addTriangle(a, c, d, target);
+        }
+    }
+
+    private static void addTriangle( int a, int b, int c, MeshArrays target ) {
+        if( a == b || b == c || a == c ) {
+            return;
+        }
+        target.addTriangle(a, b, c);
+    }
+
+    /**
+     *  The scratch state of one build: the corner densities, the Hermite
+     *  data of the crossed edges, the cell QEFs and vertexes, the
+     *  simplification octree and the staging arrays.  A context can be
+     *  used by any generator of the same chunk size but only by one build
+     *  at a time.
+     */
+    public static final class Context {
+        private final long sizeClass;
+        private final float[] densities;
+        private final int[] edgeSlots;
+        private float[] edgeData = new float[6 * 1024];
+        private final int[] cellSlots;
+        private final int[] cellVertexes;
+        private float[] cellQefs = new float[QEF_SIZE * 1024];
+
+        // Simplification scratch per octree depth
+        private float[][] nodeQefs = new float[0][];
+        private float[][] childQefs = new float[0][];
+        private boolean[][] childCollapsible = new boolean[0][];
+
+        private final double[] matrix = new double[9];
+        private final double[] vectors = new double[9];
+        private final double[] solution = new double[3];
+        private final float[] range = new float[2];
+        private final Vector3f tempNormal = new Vector3f();
+        private final MeshArrays arrays = new MeshArrays();
+
+        private Context( DualContouringMeshGenerator generator ) {
+            this.sizeClass = generator.sizeClass;
+            this.densities = new float[generator.cornerCount];
+            this.edgeSlots = new int[generator.cornerCount * 3];
+            this.cellSlots = new int[generator.cellCount];
+            this.cellVertexes = new int[generator.cellCount];
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package com.jayfella.mesh;
 
-import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.util.BufferUtils;
 
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 
 /**
  * Generates a mesh from a heightmap.
@@ -16,18 +14,58 @@ public class HeightMapMesh extends Mesh {
 
     private int hmapDim;
     private float[] heightmap;
+    private float positionScale = 1;
 
     public HeightMapMesh() {
 
     }
 
     public HeightMapMesh(float[] heightmap) {
+        this(heightmap, VertexFormat.Float, false);
+    }
+
+    /**
+     * Generates the mesh with its positions and normals in the given format, optionally interleaved.
+     * With a quantized format the geometry must be scaled by getPositionScale().
+     */
+    public HeightMapMesh(float[] heightmap, VertexFormat format, boolean interleaved) {
 
         super();
 
         this.heightmap = heightmap;
         this.hmapDim = (int) Math.sqrt(heightmap.length);
 
+        MeshArrays arrays = new MeshArrays(heightmap.length, heightmap.length * 6);
+        writeMesh(heightmap, arrays);
+
+        int vertexCount = arrays.getVertexCount();
+        float[] positions = arrays.getPositions();
+        positionScale = Math.max(1, MeshBuffers.getMaxExtent(positions, vertexCount));
+        MeshBuffers.setVertexBuffers(this, positions, arrays.getNormals(), vertexCount, format, positionScale);
+
+        //Give UV coords X,Z world coords
+        FloatBuffer tb = BufferUtils.createFloatBuffer(vertexCount * 2);
+        for (int i = 0; i < vertexCount; i++) {
+            tb.put(positions[i * 3]).put(positions[i * 3 + 2]);
+        }
+        tb.flip();
+        setBuffer(VertexBuffer.Type.TexCoord, 2, tb);
+
+        MeshBuffers.setIndexBuffer(this, arrays.getIndexes(), arrays.getIndexCount(), vertexCount);
+
+        if (interleaved) {
+            MeshBuffers.setInterleaved(this);
+        }
+    }
+
+    /**
+     * Writes the positions, normals and triangles of the mesh for the given heightmap to the given sink without
+     * creating a Mesh or any buffers.
+     */
+    public static void writeMesh(float[] heightmap, MeshSink sink) {
+
+        int hmapDim = (int) Math.sqrt(heightmap.length);
+
         int meshDim = hmapDim - 2;
 
         Vector3f[] vertArray = new Vector3f[heightmap.length];
@@ -43,7 +81,7 @@ public class HeightMapMesh extends Mesh {
             for (int z = 0; z < hmapDim; z++) {
 
                 // vertex
-                float height = getHeightMapValue(x, z);
+                float height = heightmap[(z * hmapDim) + x];
                 vertArray[(z * hmapDim) + x] = new Vector3f(x, height, z);
 
                 // indices
@@ -72,7 +110,7 @@ public class HeightMapMesh extends Mesh {
             for (int z = 0; z < meshDim; z++) {
 
                 // vertex
-                float height = getHeightMapValue(x + 1, z + 1);
+                float height = heightmap[((z + 1) * hmapDim) + x + 1];
                 vertArray[(z * meshDim) + x] = new Vector3f(x, height, z);
 
                 // indices
@@ -88,13 +126,6 @@ public class HeightMapMesh extends Mesh {
             }
         }
 
-        Vector2f[] texArray = new Vector2f[vertArray.length];
-
-        //Give UV coords X,Z world coords
-        for (int i = 0; i < vertArray.length; i++) {
-            texArray[i] = new Vector2f(vertArray[i].x, vertArray[i].z);
-        }
-
         // move the normals to their proper positions
         Vector3f[] newNorms = new Vector3f[vertArray.length];
         idx = 0;
@@ -105,23 +136,24 @@ public class HeightMapMesh extends Mesh {
             }
         }
 
-        FloatBuffer pb = BufferUtils.createFloatBuffer(vertArray);
-        setBuffer(VertexBuffer.Type.Position, 3, pb);
-
-        FloatBuffer nb = BufferUtils.createFloatBuffer(newNorms);
-        setBuffer(VertexBuffer.Type.Normal, 3, nb);
-
-        FloatBuffer tb = BufferUtils.createFloatBuffer(texArray);
-        setBuffer(VertexBuffer.Type.TexCoord, 2, tb);
-
-        IntBuffer ib = BufferUtils.createIntBuffer(triIndexes);
-        setBuffer(VertexBuffer.Type.Index, 3, ib);
+        int base = sink.getVertexCount();
+        for (int i = 0; i < vertArray.length; i++) {
+            Vector3f p = vertArray[i];
+            Vector3f n = newNorms[i];
+            sink.addVertex(p.x, p.y, p.z, n.x, n.y, n.z);
+        }
+        sink.addTriangles(triIndexes, triIndexes.length, base);
+    }
 
-        updateBound();
+    /**
+     * Returns the scale that quantized positions were divided by, which is the largest absolute coordinate.
+     */
+    public float getPositionScale() {
+        return positionScale;
     }
 
 
-    private Vector3f[] calcNormals(int[] indices, Vector3f[] verts) {
+    private static Vector3f[] calcNormals(int[] indices, Vector3f[] verts) {
 
         int numIndices = indices.length;
 
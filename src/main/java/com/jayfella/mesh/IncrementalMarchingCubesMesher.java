@@ -0,0 +1,567 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.marchingcubes.MarchingCubesConstants;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ *  Builds a Marching Cubes mesh for one chunk and then keeps it up to
+ *  date as the volume is edited, so that the cost of an edit depends on
+ *  the size of the edit rather than the size of the chunk.
+ *
+ *  <p>The mesher keeps the corner densities, the mask of every cell and
+ *  the vertex of every edge that the surface crosses from the previous
+ *  build.  update() takes the box of volume corners that was modified,
+ *  re-reads only those corners and recomputes the edges and cells that
+ *  they affect.  Edge vertexes are updated in place and vertexes that
+ *  are no longer needed are reused by later edits.  Each cell owns a
+ *  slot of triangles in the index buffer.  If a cell's new triangles fit
+ *  in its slot they are written in place and the rest of the slot is
+ *  filled with degenerate triangles, otherwise the old slot is cleared
+ *  and a new one is appended.  The index buffer is compacted once the
+ *  unused slots make up half of it, or when compact() is called.</p>
+ *
+ *  <p>The mesh and volume layout is the same as for
+ *  MarchingCubesMeshGenerator with gradient normals: the volume has a
+ *  border of one corner on every side, see getRequiredVolumeSize().
+ *  Only the changed parts of the mesh buffers are rewritten and the
+ *  mesh bound is grown to fit the changed vertexes.</p>
+ */
+public class IncrementalMarchingCubesMesher {
+
+    private static final int NO_VERTEX = -1;
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final float xzScale;
+
+    // Corner densities including the border
+    private final int planeX;
+    private final int planeXY;
+    private final float[] densities;
+
+    // Per cell state
+    private final byte[] masks;
+    private final int[] cellStarts;
+    private final byte[] cellCounts;
+    private final byte[] cellCapacities;
+
+    // Edge vertexes by (corner index * 3 + axis) for the chunk's corners
+    private final int cornersX;
+    private final int cornersXY;
+    private final int[] edgeVertexes;
+    private final int[] edgeOffsets = new int[12];
+
+    private final MeshArrays arrays = new MeshArrays();
+    private int[] freeVertexes = new int[64];
+    private int freeCount;
+    private int garbageIndexes;
+
+    private Mesh mesh;
+    private FloatBuffer positionBuffer;
+    private FloatBuffer normalBuffer;
+    private Buffer indexData;
+    private IndexBuffer indexBuffer;
+    private int[] dirtyVertexes = new int[64];
+    private int dirtyVertexCount;
+    private int[] dirtyIndexes = new int[64];
+    private int dirtyIndexCount;
+    private final Vector3f boundMin = new Vector3f();
+    private final Vector3f boundMax = new Vector3f();
+
+    private final Vector3f tempNormal = new Vector3f();
+    private final Vector3f tempNormal2 = new Vector3f();
+
+    /**
+     *  Creates a mesher for chunks of the specified number of cells.
+     */
+    public IncrementalMarchingCubesMesher( int cx, int cy, int cz ) {
+        this(cx, cy, cz, 1);
+    }
+
+    /**
+     *  Creates a mesher for chunks of the specified number of cells with
+     *  an extra x, z scale applied to the resulting mesh, the same as
+     *  the MarchingCubesMeshGenerator xzScale.
+     */
+    public IncrementalMarchingCubesMesher( int cx, int cy, int cz, float xzScale ) {
+        this.sizeX = cx;
+        this.sizeY = cy;
+        this.sizeZ = cz;
+        this.xzScale = xzScale;
+
+        this.planeX = cx + 3;
+        this.planeXY = planeX * (cy + 3);
+        this.densities = new float[planeXY * (cz + 3)];
+
+        int cells = cx * cy * cz;
+        this.masks = new byte[cells];
+        this.cellStarts = new int[cells];
+        this.cellCounts = new byte[cells];
+        this.cellCapacities = new byte[cells];
+
+        this.cornersX = cx + 1;
+        this.cornersXY = cornersX * (cy + 1);
+        this.edgeVertexes = new int[cornersXY * (cz + 1) * 3];
+
+        int[] slots = MarchingCubesConstants.edgeSlots;
+        for( int e = 0; e < 12; e++ ) {
+            int i = e * 4;
+            edgeOffsets[e] = corner(slots[i], slots[i + 1], slots[i + 2]) * 3 + slots[i + 3];
+        }
+    }
+
+    public int[] getRequiredVolumeSize() {
+        // Corners plus a border corner on each side
+        return new int[] { sizeX + 3, sizeY + 3, sizeZ + 3 };
+    }
+
+    /**
+     *  Returns the mesh of the last build or update.  The same Mesh
+     *  instance is kept up to date by update() until build() is called
+     *  again.
+     */
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    /**
+     *  Returns the number of indexes in the index buffer that belong to
+     *  cleared cell slots and will be removed by the next compaction.
+     */
+    public int getGarbageIndexCount() {
+        return garbageIndexes;
+    }
+
+    /**
+     *  Builds a new mesh for the whole volume and resets all of the
+     *  incremental state.
+     */
+    public Mesh build( DensityVolume volume ) {
+        readDensities(volume, -1, -1, -1, sizeX + 1, sizeY + 1, sizeZ + 1);
+
+        arrays.clear();
+        freeCount = 0;
+        garbageIndexes = 0;
+        Arrays.fill(edgeVertexes, NO_VERTEX);
+        Arrays.fill(cellCapacities, (byte)0);
+
+        updateEdges(0, 0, 0, sizeX, sizeY, sizeZ);
+        for( int z = 0; z < sizeZ; z++ ) {
+            for( int y = 0; y < sizeY; y++ ) {
+                for( int x = 0; x < sizeX; x++ ) {
+                    int cell = cell(x, y, z);
+                    masks[cell] = (byte)computeMask(x, y, z);
+                    writeCell(cell, x, y, z);
+                }
+            }
+        }
+
+        mesh = new Mesh();
+        positionBuffer = null;
+        normalBuffer = null;
+        indexData = null;
+        indexBuffer = null;
+        dirtyVertexCount = 0;
+        dirtyIndexCount = 0;
+        flush(true);
+        return mesh;
+    }
+
+    /**
+     *  Updates the mesh after the densities of the specified box of
+     *  volume corners have changed.  The box is in the volume's own
+     *  coordinates, ie: the same coordinates that were passed to
+     *  setDensity(), and may extend past the volume.  Returns true if
+     *  the mesh changed.
+     */
+    public boolean update( DensityVolume volume, int x, int y, int z, int sizeX, int sizeY, int sizeZ ) {
+        if( mesh == null ) {
+            throw new IllegalStateException("The mesh has not been built");
+        }
+
+        // Convert to chunk corners, clamped to the sampled corners
+        int x0 = Math.max(x - 1, -1);
+        int y0 = Math.max(y - 1, -1);
+        int z0 = Math.max(z - 1, -1);
+        int x1 = Math.min(x + sizeX - 2, this.sizeX + 1);
+        int y1 = Math.min(y + sizeY - 2, this.sizeY + 1);
+        int z1 = Math.min(z + sizeZ - 2, this.sizeZ + 1);
+        if( x0 > x1 || y0 > y1 || z0 > z1 ) {
+            return false;
+        }
+        readDensities(volume, x0, y0, z0, x1, y1, z1);
+
+        // The corner gradients, and so the normals, depend on the
+        // corners on either side so the edges one corner further out
+        // are refreshed too.
+        updateEdges(Math.max(x0 - 2, 0), Math.max(y0 - 2, 0), Math.max(z0 - 2, 0),
+                    Math.min(x1 + 1, this.sizeX), Math.min(y1 + 1, this.sizeY),
+                    Math.min(z1 + 1, this.sizeZ));
+
+        // Only cells with a changed corner can change their triangles.
+        // Edges only gain or lose their vertex when one of their corners
+        // changes sides, which also changes the mask.
+        for( int k = Math.max(z0 - 1, 0); k <= Math.min(z1, this.sizeZ - 1); k++ ) {
+            for( int j = Math.max(y0 - 1, 0); j <= Math.min(y1, this.sizeY - 1); j++ ) {
+                for( int i = Math.max(x0 - 1, 0); i <= Math.min(x1, this.sizeX - 1); i++ ) {
+                    int cell = cell(i, j, k);
+                    int mask = computeMask(i, j, k);
+                    if( mask != (masks[cell] & 0xff) ) {
+                        masks[cell] = (byte)mask;
+                        writeCell(cell, i, j, k);
+                    }
+                }
+            }
+        }
+
+        boolean changed = dirtyVertexCount > 0 || dirtyIndexCount > 0;
+        if( garbageIndexes > 0 && garbageIndexes * 2 >= arrays.getIndexCount() ) {
+            compactIndexes();
+        }
+        flush(false);
+        return changed;
+    }
+
+    /**
+     *  Removes the cleared cell slots from the index buffer and
+     *  recalculates the mesh bound.  This rewrites the whole index
+     *  buffer.
+     */
+    public void compact() {
+        if( mesh == null ) {
+            return;
+        }
+        compactIndexes();
+        flush(true);
+    }
+
+    private int cell( int x, int y, int z ) {
+        return (z * sizeY + y) * sizeX + x;
+    }
+
+    private int corner( int x, int y, int z ) {
+        return z * cornersXY + y * cornersX + x;
+    }
+
+    private float density( int x, int y, int z ) {
+        return densities[(z + 1) * planeXY + (y + 1) * planeX + x + 1];
+    }
+
+    private void readDensities( DensityVolume volume, int x0, int y0, int z0, int x1, int y1, int z1 ) {
+        for( int z = z0; z <= z1; z++ ) {
+            for( int y = y0; y <= y1; y++ ) {
+                volume.sample(x0 + 1, y + 1, z + 1, x1 - x0 + 1, 1, 1, densities,
+                              (z + 1) * planeXY + (y + 1) * planeX + x0 + 1);
+            }
+        }
+    }
+
+    private static int solid( float value ) {
+        return value > 0 ? 1 : 0;
+    }
+
+    private int computeMask( int x, int y, int z ) {
+        int bits = 0;
+        bits |= solid(density(x    , y    , z    ));
+        bits |= solid(density(x    , y + 1, z    )) << 1;
+        bits |= solid(density(x + 1, y + 1, z    )) << 2;
+        bits |= solid(density(x + 1, y    , z    )) << 3;
+        bits |= solid(density(x    , y    , z + 1)) << 4;
+        bits |= solid(density(x    , y + 1, z + 1)) << 5;
+        bits |= solid(density(x + 1, y + 1, z + 1)) << 6;
+        bits |= solid(density(x + 1, y    , z + 1)) << 7;
+        return bits;
+    }
+
+    /**
+     *  Updates the vertexes of the edges that start at the specified box
+     *  of chunk corners, inclusive.
+     */
+    private void updateEdges( int x0, int y0, int z0, int x1, int y1, int z1 ) {
+        for( int z = z0; z <= z1; z++ ) {
+            for( int y = y0; y <= y1; y++ ) {
+                for( int x = x0; x <= x1; x++ ) {
+                    if( x < sizeX ) {
+                        updateEdge(x, y, z, 0);
+                    }
+                    if( y < sizeY ) {
+                        updateEdge(x, y, z, 1);
+                    }
+                    if( z < sizeZ ) {
+                        updateEdge(x, y, z, 2);
+                    }
+                }
+            }
+        }
+    }
+
+    private void updateEdge( int x, int y, int z, int axis ) {
+        int x2 = axis == 0 ? x + 1 : x;
+        int y2 = axis == 1 ? y + 1 : y;
+        int z2 = axis == 2 ? z + 1 : z;
+        float d1 = density(x, y, z);
+        float d2 = density(x2, y2, z2);
+        int edge = corner(x, y, z) * 3 + axis;
+        int vert = edgeVertexes[edge];
+
+        if( solid(d1) == solid(d2) ) {
+            if( vert != NO_VERTEX ) {
+                freeVertex(vert);
+                edgeVertexes[edge] = NO_VERTEX;
+            }
+            return;
+        }
+        if( vert == NO_VERTEX ) {
+            vert = allocateVertex();
+            edgeVertexes[edge] = vert;
+        }
+
+        // Same calculation as MarchingCubesMeshGenerator so that the
+        // vertexes match a full build
+        float part = Math.abs(d1) / Math.abs(d2 - d1);
+        float vx = x + 1;
+        float vy = y + 1;
+        float vz = z + 1;
+        switch( axis ) {
+            case 0:
+                vx += part;
+                break;
+            case 1:
+                vy += part;
+                break;
+            default:
+                vz += part;
+                break;
+        }
+
+        Vector3f norm = getCornerNormal(x, y, z, tempNormal);
+        Vector3f n2 = getCornerNormal(x2, y2, z2, tempNormal2);
+        norm.interpolateLocal(n2, part);
+        norm.normalizeLocal();
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+
+        int i = vert * 3;
+        float[] positions = arrays.getPositions();
+        float[] normals = arrays.getNormals();
+        positions[i] = (vx - 1) * xzScale;
+        positions[i + 1] = vy - 1;
+        positions[i + 2] = (vz - 1) * xzScale;
+        normals[i] = norm.x;
+        normals[i + 1] = norm.y;
+        normals[i + 2] = norm.z;
+        markVertex(vert);
+    }
+
+    private Vector3f getCornerNormal( int x, int y, int z, Vector3f store ) {
+        float nx = density(x - 1, y, z) - density(x + 1, y, z);
+        float ny = density(x, y - 1, z) - density(x, y + 1, z);
+        float nz = density(x, y, z - 1) - density(x, y, z + 1);
+        return store.set(nx, ny, nz);
+    }
+
+    private int allocateVertex() {
+        if( freeCount > 0 ) {
+            return freeVertexes[--freeCount];
+        }
+        return arrays.addVertex(0, 0, 0, 0, 0, 0);
+    }
+
+    private void freeVertex( int vert ) {
+        // The vertex data is left as it is.  Only cells that are about
+        // to be rewritten can still refer to it.
+        if( freeCount == freeVertexes.length ) {
+            freeVertexes = Arrays.copyOf(freeVertexes, freeCount * 2);
+        }
+        freeVertexes[freeCount++] = vert;
+    }
+
+    /**
+     *  Writes the triangles for the current mask of the specified cell
+     *  into its slot, moving the cell to a new slot at the end of the
+     *  index buffer if they do not fit.
+     */
+    private void writeCell( int cell, int x, int y, int z ) {
+        int mask = masks[cell] & 0xff;
+        int count = MarchingCubesConstants.caseCounts[mask] / 3;
+        int capacity = cellCapacities[cell];
+        int start = cellStarts[cell];
+
+        if( count > capacity ) {
+            if( capacity > 0 ) {
+                // Clear the old slot
+                Arrays.fill(arrays.getIndexes(), start, start + capacity * 3, 0);
+                markIndexes(start, capacity * 3);
+                garbageIndexes += capacity * 3;
+            }
+            start = arrays.getIndexCount();
+            capacity = count;
+            arrays.resize(arrays.getVertexCount(), start + capacity * 3);
+            cellStarts[cell] = start;
+            cellCapacities[cell] = (byte)capacity;
+        }
+        cellCounts[cell] = (byte)count;
+        if( capacity == 0 ) {
+            return;
+        }
+
+        int[] indexes = arrays.getIndexes();
+        int base = corner(x, y, z) * 3;
+        int i = start;
+        int[] caseEdges = MarchingCubesConstants.caseEdges;
+        for( int j = MarchingCubesConstants.caseOffsets[mask], end = j + count * 3; j < end; j++ ) {
+            indexes[i++] = edgeVertexes[base + edgeOffsets[caseEdges[j]]];
+        }
+        // Degenerate triangles for the rest of the slot
+        Arrays.fill(indexes, i, start + capacity * 3, 0);
+        markIndexes(start, capacity * 3);
+    }
+
+    /**
+     *  Packs the used triangles of every cell into new slots that are
+     *  exactly their size.
+     */
+    private void compactIndexes() {
+        int[] indexes = arrays.getIndexes();
+        int[] packed = new int[arrays.getIndexCount() - garbageIndexes];
+        int size = 0;
+        for( int cell = 0; cell < cellStarts.length; cell++ ) {
+            int count = cellCounts[cell] * 3;
+            if( cellCapacities[cell] == 0 ) {
+                continue;
+            }
+            System.arraycopy(indexes, cellStarts[cell], packed, size, count);
+            cellStarts[cell] = size;
+            cellCapacities[cell] = cellCounts[cell];
+            size += count;
+        }
+        arrays.resize(arrays.getVertexCount(), size);
+        System.arraycopy(packed, 0, arrays.getIndexes(), 0, size);
+        garbageIndexes = 0;
+        dirtyIndexCount = 0;
+        markIndexes(0, size);
+    }
+
+    private void markVertex( int vert ) {
+        if( dirtyVertexCount == dirtyVertexes.length ) {
+            dirtyVertexes = Arrays.copyOf(dirtyVertexes, dirtyVertexCount * 2);
+        }
+        dirtyVertexes[dirtyVertexCount++] = vert;
+    }
+
+    private void markIndexes( int start, int count ) {
+        if( dirtyIndexCount + 2 > dirtyIndexes.length ) {
+            dirtyIndexes = Arrays.copyOf(dirtyIndexes, dirtyIndexes.length * 2);
+        }
+        dirtyIndexes[dirtyIndexCount++] = start;
+        dirtyIndexes[dirtyIndexCount++] = count;
+    }
+
+    /**
+     *  Copies the changed vertexes and indexes into the mesh buffers,
+     *  reallocating the buffers if they have grown past their capacity.
+     *  A full flush also recalculates the mesh bound, otherwise the bound
+     *  is only grown to fit the changed vertexes.
+     */
+    private void flush( boolean full ) {
+        int vertexCount = arrays.getVertexCount();
+        int indexCount = arrays.getIndexCount();
+
+        if( positionBuffer == null || positionBuffer.capacity() < vertexCount * 3 ) {
+            int capacity = Math.max(16, vertexCount + vertexCount / 2) * 3;
+            positionBuffer = BufferUtils.createFloatBuffer(capacity);
+            normalBuffer = BufferUtils.createFloatBuffer(capacity);
+            arrays.writePositions(positionBuffer);
+            arrays.writeNormals(normalBuffer);
+        } else {
+            float[] positions = arrays.getPositions();
+            float[] normals = arrays.getNormals();
+            positionBuffer.limit(positionBuffer.capacity());
+            normalBuffer.limit(normalBuffer.capacity());
+            for( int i = 0; i < dirtyVertexCount; i++ ) {
+                int index = dirtyVertexes[i] * 3;
+                for( int j = index; j < index + 3; j++ ) {
+                    positionBuffer.put(j, positions[j]);
+                    normalBuffer.put(j, normals[j]);
+                }
+            }
+        }
+
+        // The index width is picked for the vertex capacity so that it
+        // only changes when the vertex buffers are reallocated.
+        int[] indexes = arrays.getIndexes();
+        if( indexData == null || indexData.capacity() < indexCount
+            || (indexBuffer.getFormat() == VertexBuffer.Format.UnsignedShort
+                && !MeshBuffers.isShortIndexable(vertexCount)) ) {
+            indexData = MeshBuffers.createIndexBuffer(positionBuffer.capacity() / 3,
+                                                      Math.max(48, indexCount + indexCount / 2));
+            indexBuffer = IndexBuffer.wrapIndexBuffer(indexData);
+            for( int i = 0; i < indexCount; i++ ) {
+                indexBuffer.put(i, indexes[i]);
+            }
+        } else {
+            indexData.limit(indexData.capacity());
+            for( int i = 0; i < dirtyIndexCount; i += 2 ) {
+                for( int j = dirtyIndexes[i], end = j + dirtyIndexes[i + 1]; j < end; j++ ) {
+                    indexBuffer.put(j, indexes[j]);
+                }
+            }
+        }
+
+        positionBuffer.position(0).limit(vertexCount * 3);
+        normalBuffer.position(0).limit(vertexCount * 3);
+        indexData.position(0).limit(indexCount);
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, positionBuffer);
+        mesh.setBuffer(VertexBuffer.Type.Normal, 3, normalBuffer);
+        MeshBuffers.setIndexBuffer(mesh, indexData);
+
+        if( full || !(mesh.getBound() instanceof BoundingBox) ) {
+            mesh.updateBound();
+            updateBoundFromMesh();
+        } else {
+            growBound();
+        }
+
+        dirtyVertexCount = 0;
+        dirtyIndexCount = 0;
+    }
+
+    private void updateBoundFromMesh() {
+        BoundingVolume bound = mesh.getBound();
+        if( bound instanceof BoundingBox ) {
+            ((BoundingBox)bound).getMin(boundMin);
+            ((BoundingBox)bound).getMax(boundMax);
+        }
+    }
+
+    /**
+     *  Grows the mesh bound to contain the changed vertexes.  The bound
+     *  is not shrunk until the next compaction.
+     */
+    private void growBound() {
+        float[] positions = arrays.getPositions();
+        for( int i = 0; i < dirtyVertexCount; i++ ) {
+            int index = dirtyVertexes[i] * 3;
+            float x = positions[index];
+            float y = positions[index + 1];
+            float z = positions[index + 2];
+            boundMin.set(Math.min(boundMin.x, x), Math.min(boundMin.y, y), Math.min(boundMin.z, z));
+            boundMax.set(Math.max(boundMax.x, x), Math.max(boundMax.y, y), Math.max(boundMax.z, z));
+        }
+        ((BoundingBox)mesh.getBound()).setMinMax(boundMin, boundMax);
+    }
+}
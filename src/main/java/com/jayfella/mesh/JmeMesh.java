@@ -46,6 +46,19 @@ public class JmeMesh extends Mesh {
             setBuffer(type, c, fb);
         }
 
+        else if (componentType == Integer.class && type == VertexBuffer.Type.Index) {
+
+            int[] indexes = new int[inputValues.length];
+            int vertexCount = 0;
+
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = (int) inputValues[i];
+                vertexCount = Math.max(vertexCount, indexes[i] + 1);
+            }
+
+            MeshBuffers.setIndexBuffer(this, indexes, indexes.length, vertexCount);
+        }
+
         else if (componentType == Integer.class) {
 
             IntBuffer ib = BufferUtils.createIntBuffer(inputValues.length);
@@ -54,9 +67,7 @@ public class JmeMesh extends Mesh {
                 ib.put((int) inputValue);
             }
 
-            int c = type == VertexBuffer.Type.Index
-                    ? 3
-                    : (components == null ? 3 : components);
+            int c = (components == null ? 3 : components);
 
             setBuffer(type, c, ib);
         }
@@ -0,0 +1,92 @@
+package com.jayfella.mesh;
+
+import java.util.Arrays;
+
+/**
+ *  An open addressing hash map from non-negative long keys to int values
+ *  without any per-entry objects.  Used to share vertexes between cells
+ *  that are not visited in a regular order.
+ */
+class LongIntHashMap {
+
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap( int capacity ) {
+        int length = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+        this.keys = new long[length];
+        this.values = new int[length];
+        this.mask = length - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if( size > 0 ) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     *  Returns the value of the specified key or -1 if there is none.
+     */
+    public int get( long key ) {
+        for( int i = slot(key); ; i = (i + 1) & mask ) {
+            long k = keys[i];
+            if( k == key ) {
+                return values[i];
+            }
+            if( k == EMPTY ) {
+                return -1;
+            }
+        }
+    }
+
+    public void put( long key, int value ) {
+        int i = slot(key);
+        for( ; keys[i] != EMPTY; i = (i + 1) & mask ) {
+            if( keys[i] == key ) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // Keep the load factor below one half
+        if( ++size * 2 > keys.length ) {
+            grow();
+        }
+    }
+
+    private int slot( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        Arrays.fill(keys, EMPTY);
+        for( int i = 0; i < oldKeys.length; i++ ) {
+            if( oldKeys[i] != EMPTY ) {
+                int j = slot(oldKeys[i]);
+                while( keys[j] != EMPTY ) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -38,34 +38,131 @@ package com.jayfella.mesh;
 
 import com.jayfella.mesh.marchingcubes.DensityVolume;
 import com.jayfella.mesh.marchingcubes.MarchingCubesConstants;
+import com.jayfella.mesh.marchingcubes.RangedDensityVolume;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
-import com.jme3.scene.VertexBuffer.Type;
-import com.jme3.util.BufferUtils;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 /**
  *  Takes a density field and generates meshes for it
  *  using the Marching Cubes algorithm.
  *
+ *  <p>The scratch state of a build is kept in a Context rather than in
+ *  the generator, and contexts are pooled by chunk size and shared by
+ *  all generators, so one configured generator can run any number of
+ *  builds at the same time without allocating scratch arrays per build.
+ *  The generator's settings must not be changed while builds are
+ *  running.  Large chunks can be built in parallel by passing a
+ *  ForkJoinPool to buildMesh(), in which case the volume is split into
+ *  slabs along the x axis that are extracted concurrently.  The volume
+ *  must then support concurrent reads.</p>
+ *
+ *  <p>The volume is swept one x slice at a time and only the cell masks
+ *  and edge vertex indexes for the current and previous slice are kept,
+ *  so the scratch memory of a build is proportional to cy * cz
+ *  rather than to the whole chunk.  The corner densities of each x plane
+ *  are read from the volume once into a scratch plane and the masks,
+ *  edge crossings and, by default, the normals are computed from there.</p>
+ *
+ *  <p>If the volume is a RangedDensityVolume then chunks that are entirely
+ *  solid or entirely empty are skipped without sampling them at all, and
+ *  homogeneous blocks of cells inside a chunk are skipped without sampling
+ *  their interior corners.</p>
+ *
+ *  <p>Coarse levels of detail are built by sampling every Nth corner of
+ *  the source, with a StridedDensityVolume view or a strided
+ *  ArrayDensityVolume.extractVolume(), and setting the voxel size to N so
+ *  the mesh is emitted in the source's units.  A 256 cell region then
+ *  costs the same as a 32 cell chunk at a voxel size of 8.</p>
+ *
+ *  <p>Chunks next to a chunk with twice the voxel size can be given
+ *  transition faces with setTransitionFaces().  Transition cells are then
+ *  added on those faces to close the seam between this chunk's surface
+ *  and the coarser neighbour's surface.</p>
+ *
  *  @author    Paul Speed
  */
 public class MarchingCubesMeshGenerator {
 
+    /**
+     *  Determines how vertex normals are calculated.
+     */
+    public enum NormalType {
+        /**
+         *  Normals are the central difference gradients at the grid
+         *  corners, calculated from the already sampled densities and
+         *  interpolated along the edge.  For an ArrayDensityVolume this
+         *  is the same result as FieldDirection without any extra reads.
+         */
+        Gradient,
+
+        /**
+         *  Normals are sampled from DensityVolume.getFieldDirection()
+         *  at the exact vertex position.
+         */
+        FieldDirection
+    }
+
+    /**
+     *  The minimum number of x slices in a slab when building in parallel.
+     */
+    private static final int MIN_SLAB_SIZE = 4;
+
+    /**
+     *  The size of the blocks of cells whose density range is checked
+     *  when the volume is a RangedDensityVolume.
+     */
+    private static final int BLOCK_SIZE = 8;
+
+    /**
+     *  Transition face flags for setTransitionFaces().
+     */
+    public static final int NEGATIVE_X = 0x01;
+    public static final int POSITIVE_X = 0x02;
+    public static final int NEGATIVE_Y = 0x04;
+    public static final int POSITIVE_Y = 0x08;
+    public static final int NEGATIVE_Z = 0x10;
+    public static final int POSITIVE_Z = 0x20;
+
+    private static final int ALL_FACES = 0x3f;
+
+    private static final int X_AXIS = 0;
+    private static final int Y_AXIS = 1;
+    private static final int Z_AXIS = 2;
+
+    /**
+     *  The scratch contexts shared by all generators, by chunk size.
+     */
+    private static final ScratchPool<Context> CONTEXTS = new ScratchPool<>();
+
+    /**
+     *  The slot of each axis' edge vertex in the three edge vertexes
+     *  that each corner of a slice keeps.
+     */
+    private static final int[] AXIS_SLOTS = { 1, 0, 2 };
+
     private final int cx;
     private final int cy;
     private final int cz;
-    private final int[] masks;
-    private final int[] cells;
-    private final boolean[] edgeHit = new boolean[12];
-    private final int[][][][] edgeVerts;
+    private final int blocksX;
+    private final int blocksY;
+    private final int blocksZ;
+    private final long sizeClass;
 
     private float xzScale = 1;
+    private float voxelSize = 1;
+    private NormalType normalType = NormalType.Gradient;
+    private VertexFormat vertexFormat = VertexFormat.Float;
+    private boolean interleaved;
+    private int transitionFaces;
+    private int border = 1;
+
+    // For each edge, whether its vertex is in the next slice and its
+    // offset from the cell's first edge vertex in that slice
+    private final int[] edgeSlices = new int[12];
+    private final int[] edgeOffsets = new int[12];
 
     /**
      *  Creates a Marching Cubes based mesh generator that will
@@ -90,9 +187,18 @@ public class MarchingCubesMeshGenerator {
         this.cx = cx;
         this.cy = cy;
         this.cz = cz;
-        this.masks = new int[cx * cy * cz];
-        this.cells = new int[cx * cy * cz];
-        this.edgeVerts = new int[cx+1][cy+1][cz+1][3];
+        this.blocksX = (cx + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.blocksY = (cy + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.blocksZ = (cz + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.sizeClass = ScratchPool.sizeClass(cx, cy, cz);
+
+        for( int e = 0; e < 12; e++ ) {
+            int base = e * 4;
+            edgeSlices[e] = MarchingCubesConstants.edgeSlots[base];
+            edgeOffsets[e] = MarchingCubesConstants.edgeSlots[base + 1] * cz * 3
+                           + MarchingCubesConstants.edgeSlots[base + 2] * 3
+                           + AXIS_SLOTS[MarchingCubesConstants.edgeSlots[base + 3]];
+        }
         this.xzScale = xzScale;
     }
 
@@ -101,16 +207,17 @@ public class MarchingCubesMeshGenerator {
         // sample corners and so neded +1
         // However, we also sample an extra border on all sides which
         // is another +2... +3 in all.  But the +1 is already incorporated
-        // into our size fields.
+        // into our size fields.  Transition cells need a second border
+        // corner for the coarser neighbour's cells.
         // return new Vector3f(cx + 2, cy + 2, cz + 2);
-        return new int[]{ cx + 2, cy + 2, cz + 2 };
+        return new int[]{ cx + border * 2, cy + border * 2, cz + border * 2 };
     }
 
     public Vector3f getGenerationSize() {
         int x = cx - 1;
         int y = cy - 1;
         int z = cz - 1;
-        return new Vector3f(x * xzScale, y, z * xzScale);
+        return new Vector3f(x * xzScale * voxelSize, y * voxelSize, z * xzScale * voxelSize);
     }
 
     public void setXzScale( float s ) {
@@ -121,29 +228,207 @@ public class MarchingCubesMeshGenerator {
         return xzScale;
     }
 
-    private int solid( float value ) {
-        return value > 0 ? 1 : 0;
+    /**
+     *  Sets the size of one cell in the generated mesh, ie: the distance
+     *  between the volume's corners in mesh units.  This is applied on
+     *  all axes in addition to the xzScale.  When the volume samples every
+     *  Nth corner of a larger source, a voxel size of N produces a mesh in
+     *  the source's units.  Defaults to 1.
+     */
+    public void setVoxelSize( float voxelSize ) {
+        if( voxelSize <= 0 ) {
+            throw new IllegalArgumentException("Voxel size must be positive:" + voxelSize);
+        }
+        this.voxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     *  Sets how vertex normals are calculated.  Defaults to
+     *  NormalType.Gradient.
+     */
+    public void setNormalType( NormalType normalType ) {
+        if( normalType == null ) {
+            throw new IllegalArgumentException("Normal type cannot be null");
+        }
+        this.normalType = normalType;
+    }
+
+    public NormalType getNormalType() {
+        return normalType;
+    }
+
+    /**
+     *  Sets the format of the position and normal buffers of the meshes
+     *  returned by buildMesh().  With a quantized format the geometry
+     *  must be scaled by getPositionScale().  Defaults to
+     *  VertexFormat.Float.
+     */
+    public void setVertexFormat( VertexFormat vertexFormat ) {
+        if( vertexFormat == null ) {
+            throw new IllegalArgumentException("Vertex format cannot be null");
+        }
+        this.vertexFormat = vertexFormat;
     }
 
-    private Vector3f getEdgePoint( int x, int y, int z, int edge, DensityVolume volume ) {
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
+    }
+
+    /**
+     *  Sets whether the meshes returned by buildMesh() store their vertex
+     *  attributes interleaved in a single buffer.  Defaults to false.
+     */
+    public void setInterleaved( boolean interleaved ) {
+        this.interleaved = interleaved;
+    }
 
-        int x1 = x + MarchingCubesConstants.edgeStarts[edge][0] + 1;
-        int y1 = y + MarchingCubesConstants.edgeStarts[edge][1] + 1;
-        int z1 = z + MarchingCubesConstants.edgeStarts[edge][2] + 1;
-        float d1 = volume.getDensity(x1, y1, z1);
+    public boolean isInterleaved() {
+        return interleaved;
+    }
 
-        int x2 = x + MarchingCubesConstants.edgeEnds[edge][0] + 1;
-        int y2 = y + MarchingCubesConstants.edgeEnds[edge][1] + 1;
-        int z2 = z + MarchingCubesConstants.edgeEnds[edge][2] + 1;
-        float d2 = volume.getDensity(x2, y2, z2);
+    /**
+     *  Returns the scale that quantized positions are divided by, which
+     *  is the largest axis of the generation size.  Every chunk of the
+     *  same size uses the same scale, so a quantized chunk geometry is
+     *  given setLocalScale(getPositionScale()).
+     */
+    public float getPositionScale() {
+        Vector3f size = getGenerationSize();
+        return Math.max(size.x, Math.max(size.y, size.z));
+    }
+
+    /**
+     *  Sets the faces of the chunk, as a combination of the NEGATIVE_X
+     *  through POSITIVE_Z flags, that border a chunk with twice this
+     *  chunk's voxel size.  Transition cells are built on those faces
+     *  to join this chunk's surface to the coarser surface.  The number
+     *  of cells across each transition face must be even and the coarse
+     *  neighbour's corners must line up with every second corner of this
+     *  chunk, as they do when both chunks are strided views of the same
+     *  source whose base corners are multiples of the coarse stride and
+     *  the neighbour uses twice the stride and voxel size.  While any
+     *  transition face is set the volume needs a border of two corners
+     *  on every side, ie: it must support queries from -2 to size + 2 as
+     *  reported by getRequiredVolumeSize().
+     */
+    public void setTransitionFaces( int faces ) {
+        if( (faces & ~ALL_FACES) != 0 ) {
+            throw new IllegalArgumentException("Unknown transition faces:" + faces);
+        }
+        int[] size = { cx - 1, cy - 1, cz - 1 };
+        for( int face = 0; face < 6; face++ ) {
+            if( (faces & (1 << face)) == 0 ) {
+                continue;
+            }
+            int axis = face >> 1;
+            for( int i = 0; i < 3; i++ ) {
+                if( i != axis && (size[i] & 1) != 0 ) {
+                    throw new IllegalArgumentException("Transition faces require an even number of cells, face:"
+                                                       + face + " size:" + size[i]);
+                }
+            }
+        }
+        this.transitionFaces = faces;
+        this.border = faces == 0 ? 1 : 2;
+    }
+
+    public int getTransitionFaces() {
+        return transitionFaces;
+    }
+
+    private int solid( float value ) {
+        return value > 0 ? 1 : 0;
+    }
+
+    /**
+     *  Adds the vertex where the surface crosses the edge that starts at
+     *  the corner c of plane x with density d1 and goes one unit along
+     *  the specified axis to a corner with density d2.  Returns the
+     *  vertex's slab-local index.  The normal is calculated in volume
+     *  space and the position is then shifted back by the border and
+     *  scaled by xzScale and the voxel size in place, so no second pass over the vertexes
+     *  is required.
+     */
+    private int addEdgeVertex( DensityVolume volume, Slab slab, int x, int y, int z, int c,
+                               int axis, float d1, float d2 ) {
 
         // If d1 is -0.2 and d2 is 0.6 then the
         // point should be 0.25 from edge start.
         float part = Math.abs(d1) / Math.abs(d2 - d1);
-        float vx = x1 + (x2-x1) * part;
-        float vy = y1 + (y2-y1) * part;
-        float vz = z1 + (z2-z1) * part;
-        return new Vector3f(vx, vy, vz);
+        float vx = x + border;
+        float vy = y + border;
+        float vz = z + border;
+        int x2 = x;
+        int c2;
+        switch( axis ) {
+            case X_AXIS:
+                vx += part;
+                x2++;
+                c2 = c;
+                break;
+            case Y_AXIS:
+                vy += part;
+                c2 = c + 1;
+                break;
+            default:
+                vz += part;
+                c2 = c + cy + 2;
+                break;
+        }
+
+        Vector3f norm;
+        if( normalType == NormalType.FieldDirection ) {
+            norm = volume.getFieldDirection(vx, vy, vz, slab.tempNormal);
+        } else {
+            norm = getCornerNormal(slab.densities, x, c, slab.tempNormal);
+            Vector3f n2 = getCornerNormal(slab.densities, x2, c2, slab.tempNormal2);
+            norm.interpolateLocal(n2, part);
+            norm.normalizeLocal();
+        }
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+        return slab.out.addVertex((vx - border) * xzScale * voxelSize, (vy - border) * voxelSize,
+                                  (vz - border) * xzScale * voxelSize,
+                                  norm.x, norm.y, norm.z);
+    }
+
+    /**
+     *  Calculates the negated central difference gradient at the corner c
+     *  of plane x from the sampled densities, which requires the planes on
+     *  either side and the volume border to have been sampled.
+     */
+    private Vector3f getCornerNormal( float[][] planes, int x, int c, Vector3f store ) {
+        int ny = cy + 2;
+        float[] plane = planes[x & 3];
+        float nx = planes[(x - 1) & 3][c] - planes[(x + 1) & 3][c];
+        float nyz = plane[c - 1] - plane[c + 1];
+        float nz = plane[c - ny] - plane[c + ny];
+        return store.set(nx, nyz, nz);
+    }
+
+    /**
+     *  Creates a new scratch context for the builds of this generator and
+     *  of any other generator of the same size.  Callers that manage
+     *  their own threads can keep one context per thread and pass it to
+     *  buildMesh(volume, target, context).  The other build methods take
+     *  a context from a shared pool for the duration of the build.
+     */
+    public Context createContext() {
+        return new Context(this);
+    }
+
+    private Context acquireContext() {
+        return CONTEXTS.acquire(sizeClass, this::createContext);
+    }
+
+    private void releaseContext( Context context ) {
+        CONTEXTS.release(sizeClass, context);
     }
 
     /**
@@ -153,191 +438,561 @@ public class MarchingCubesMeshGenerator {
      *  will internally build a border of cells.
      */
     public Mesh buildMesh( DensityVolume volume ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return null;
+            }
+            return context.arrays.createMesh(vertexFormat, getPositionScale(), interleaved);
+        } finally {
+            releaseContext(context);
+        }
+    }
 
-        List<Vector3f> verts = new ArrayList<>();
-        List<Vector3f> normals = new ArrayList<>();
-        int cellIndex = 0;
-        int triangleCount = 0;
-        int maskIndex = 0;
+    /**
+     *  Builds a mesh from the specified volume using the specified pool
+     *  to extract slabs of the volume in parallel.  The resulting mesh is
+     *  the same as the one produced by the sequential buildMesh().
+     */
+    public Mesh buildMesh( DensityVolume volume, ForkJoinPool pool ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, pool, context) ) {
+                return null;
+            }
+            return context.arrays.createMesh(vertexFormat, getPositionScale(), interleaved);
+        } finally {
+            releaseContext(context);
+        }
+    }
 
-        // Build up the edge indexes so we can share edges
-        for( int x = 0; x < cx; x++ ) {
-            for( int y = 0; y < cy; y++ ) {
-                for( int z = 0; z < cz; z++ ) {
-                    int bits = 0;
-                    int sx = x + 1;
-                    int sy = y + 1;
-                    int sz = z + 1;
-
-                    bits |= solid(volume.getDensity(sx  , sy  , sz  ));
-                    bits |= solid(volume.getDensity(sx  , sy+1, sz  )) << 1;
-                    bits |= solid(volume.getDensity(sx+1, sy+1, sz  )) << 2;
-                    bits |= solid(volume.getDensity(sx+1, sy  , sz  )) << 3;
-                    bits |= solid(volume.getDensity(sx  , sy  , sz+1)) << 4;
-                    bits |= solid(volume.getDensity(sx  , sy+1, sz+1)) << 5;
-                    bits |= solid(volume.getDensity(sx+1, sy+1, sz+1)) << 6;
-                    bits |= solid(volume.getDensity(sx+1, sy  , sz+1)) << 7;
-
-                    if( MarchingCubesConstants.triEdges[bits].length > 0 ) {
-                        // We _do_ want to process some of the edges but
-                        // we _don't_ want to process the actual cell if
-                        // it is the outside border
-                        if( x < cx - 1 && y < cy - 1 && z < cz - 1 ) {
-                            cells[cellIndex++] = maskIndex;
-                        }
-                        int[][] triangles = MarchingCubesConstants.triEdges[bits];
-                        triangleCount += triangles.length;
-                        Arrays.fill(edgeHit, false);
-
-                        for (int[] triEdges : triangles) {
-                            for (int i = 0; i < 3; i++) {
-                                edgeHit[triEdges[i]] = true;
-                            }
-                        }
-
-                        // The density field is theoretically cx * cy * cz which
-                        // means that we only need to generate cells for cx - 1, cy -1, cz -1
-                        // We generate extra cells to make sure we have the edges we need...
-                        // but these cells are technically outside of the field and
-                        // we will need to skip them later.  Also, I guess we can avoid
-                        // generating some extra vertexes that would stick out.
-                        if( edgeHit[0] && y < cy - 1 ) {
-                            Vector3f vert = getEdgePoint(x, y, z, 0, volume);
-                            edgeVerts[x][y][z][0] = verts.size();
-                            verts.add(vert);
-                            normals.add(volume.getFieldDirection(vert.x, vert.y, vert.z, null));
-                            vert.x--;
-                            vert.y--;
-                            vert.z--;
-                        }
-                        if( edgeHit[3] && x < cx - 1 ) {
-                            Vector3f vert = getEdgePoint(x, y, z, 3, volume);
-                            edgeVerts[x][y][z][1] = verts.size();
-                            verts.add(vert);
-                            normals.add(volume.getFieldDirection(vert.x, vert.y, vert.z, null));
-                            vert.x--;
-                            vert.y--;
-                            vert.z--;
-                        }
-                        if( edgeHit[8] && z < cz - 1 ) {
-                            Vector3f vert = getEdgePoint(x, y, z, 8, volume);
-                            edgeVerts[x][y][z][2] = verts.size();
-                            verts.add(vert);
-                            normals.add(volume.getFieldDirection(vert.x, vert.y, vert.z, null));
-                            vert.x--;
-                            vert.y--;
-                            vert.z--;
-                        }
-                    }
-                    masks[maskIndex++] = bits;
+    /**
+     *  Builds the geometry for the specified volume and writes it to the
+     *  specified sink instead of creating a Mesh, so no direct buffers
+     *  are allocated.  Returns false if the volume produced no geometry,
+     *  in which case nothing is written.
+     */
+    public boolean writeMesh( DensityVolume volume, MeshSink sink ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return false;
+            }
+            context.arrays.writeTo(sink);
+            return true;
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume directly into the
+     *  specified primitive arrays, replacing their current contents.
+     *  No per-vertex objects are created which makes this suitable for
+     *  streaming many chunks.  The arrays may be copied into caller
+     *  owned buffers using the MeshArrays write methods.  Returns false
+     *  if the volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target ) {
+        Context context = acquireContext();
+        try {
+            return buildMesh(volume, target, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume into the specified
+     *  primitive arrays using the specified scratch context, which must
+     *  have been created by a generator of the same size and must not be
+     *  used by another build at the same time.  Returns false if the
+     *  volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target, Context context ) {
+        if( context.sizeClass != sizeClass ) {
+            throw new IllegalArgumentException("Context was created for a different chunk size");
+        }
+
+        target.clear();
+        if( prepareBlocks(volume, context) ) {
+            return false;
+        }
+
+        Slab slab = context.getSlabs(1)[0];
+        slab.x0 = 0;
+        slab.x1 = cx;
+        slab.out = target;
+        try {
+            sweepSlab(volume, slab);
+        } finally {
+            slab.out = null;
+        }
+        if( target.getIndexCount() == 0 ) {
+            target.clear();
+            return false;
+        }
+        buildTransitions(volume, target, context);
+        return true;
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume directly into the
+     *  specified primitive arrays using the specified pool to extract
+     *  slabs of the volume in parallel.  Each slab also extracts the
+     *  first slice of the slab after it so that it can emit its own last
+     *  row of cells.  Those boundary vertexes are the same ones, in the
+     *  same order, that the next slab creates for its first slice, so
+     *  they are stitched together by remapping them onto the next slab's
+     *  vertexes.  The result is identical to the sequential build.
+     *  Returns false if the volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target, ForkJoinPool pool ) {
+        Context context = acquireContext();
+        try {
+            return buildMesh(volume, target, pool, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    private boolean buildMesh( DensityVolume volume, MeshArrays target, ForkJoinPool pool, Context context ) {
+
+        int count = Math.min(pool.getParallelism() * 4, cx / MIN_SLAB_SIZE);
+        if( count < 2 ) {
+            return buildMesh(volume, target, context);
+        }
+
+        target.clear();
+        if( prepareBlocks(volume, context) ) {
+            return false;
+        }
+
+        Slab[] slabs = context.getSlabs(count);
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+        for( int i = 0; i < count; i++ ) {
+            Slab slab = slabs[i];
+            slab.x0 = (cx * i) / count;
+            slab.x1 = (cx * (i + 1)) / count;
+            if( slab.ownOut == null ) {
+                slab.ownOut = new MeshArrays();
+            }
+            slab.out = slab.ownOut;
+            slab.out.clear();
+            tasks[i] = ForkJoinTask.adapt(() -> sweepSlab(volume, slab));
+        }
+        invokeAll(pool, tasks);
+
+        // Lay the slabs out one after the other.  Because the slabs are
+        // in x order this is the same vertex and triangle order that
+        // the sequential build produces.
+        int vertexCount = 0;
+        int indexCount = 0;
+        for( int i = 0; i < count; i++ ) {
+            Slab slab = slabs[i];
+            slab.vertexBase = vertexCount;
+            slab.indexBase = indexCount;
+            vertexCount += slab.ownedVertexCount;
+            indexCount += slab.out.getIndexCount();
+        }
+        if( indexCount == 0 ) {
+            return false;
+        }
+        target.resize(vertexCount, indexCount);
+
+        for( int i = 0; i < count; i++ ) {
+            Slab slab = slabs[i];
+            int nextBase = i + 1 < count ? slabs[i + 1].vertexBase : vertexCount;
+            tasks[i] = ForkJoinTask.adapt(() -> mergeSlab(slab, target, nextBase));
+        }
+        invokeAll(pool, tasks);
+
+        buildTransitions(volume, target, context);
+        return true;
+    }
+
+    /**
+     *  Appends the transition cells for the transition faces after the
+     *  regular cells.
+     */
+    private void buildTransitions( DensityVolume volume, MeshArrays target, Context context ) {
+        if( transitionFaces == 0 ) {
+            return;
+        }
+        if( context.transitions == null ) {
+            context.transitions = new TransitionCellBuilder(cx - 1, cy - 1, cz - 1, 2);
+        }
+        boolean gradients = normalType == NormalType.Gradient;
+        for( int face = 0; face < 6; face++ ) {
+            if( (transitionFaces & (1 << face)) != 0 ) {
+                context.transitions.build(volume, face, xzScale, voxelSize, gradients, target);
+            }
+        }
+    }
+
+    private static void invokeAll( ForkJoinPool pool, ForkJoinTask<?>[] tasks ) {
+        // The tasks are forked from inside the pool so that they run
+        // on the pool's workers rather than the common pool.
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    /**
+     *  Checks the density ranges of the volume if it is a
+     *  RangedDensityVolume.  Returns true if the whole chunk is
+     *  homogeneous and otherwise flags the homogeneous blocks of
+     *  cells that the slabs can skip.
+     */
+    private boolean prepareBlocks( DensityVolume volume, Context context ) {
+        context.skipping = false;
+        if( !(volume instanceof RangedDensityVolume) ) {
+            return false;
+        }
+        RangedDensityVolume ranged = (RangedDensityVolume)volume;
+
+        // All cells including the border cells
+        if( isHomogeneous(ranged, 0, 0, 0, cx, cy, cz, context.range) ) {
+            return true;
+        }
+
+        int index = 0;
+        for( int x = 0; x < blocksX; x++ ) {
+            for( int y = 0; y < blocksY; y++ ) {
+                for( int z = 0; z < blocksZ; z++ ) {
+                    int x0 = x * BLOCK_SIZE;
+                    int y0 = y * BLOCK_SIZE;
+                    int z0 = z * BLOCK_SIZE;
+                    boolean skip = isHomogeneous(ranged, x0, y0, z0,
+                                                 Math.min(BLOCK_SIZE, cx - x0),
+                                                 Math.min(BLOCK_SIZE, cy - y0),
+                                                 Math.min(BLOCK_SIZE, cz - z0), context.range);
+                    context.skipBlocks[index++] = skip;
+                    context.skipping |= skip;
                 }
             }
         }
+        return false;
+    }
 
-        int cellCount = cellIndex;
-        if( cellCount == 0 )
-            return null;
+    /**
+     *  Returns true if all of the corners of the specified box of cells
+     *  are on the same side of the surface.
+     */
+    private boolean isHomogeneous( RangedDensityVolume volume, int x, int y, int z,
+                                   int sizeX, int sizeY, int sizeZ, float[] range ) {
+        // A cell's corners run from its own index to index + 1 and
+        // the volume has extra border corners at the start.
+        float[] r = volume.getDensityRange(x + border, y + border, z + border,
+                                           sizeX + 1, sizeY + 1, sizeZ + 1, range);
+        return r[0] > 0 || r[1] <= 0;
+    }
 
-        if( xzScale != 1 ) {
-            for( int i = 0; i < verts.size(); i++ ) {
-                Vector3f v = verts.get(i);
-                Vector3f n = normals.get(i);
-                v.x *= xzScale;
-                v.z *= xzScale;
-                n.y *= xzScale;
-                n.normalizeLocal();
+    /**
+     *  Copies the owned vertexes of the specified slab into the target
+     *  arrays at the slab's vertexBase and its triangles at the slab's
+     *  indexBase.  Slab-local indexes past the owned vertexes refer to
+     *  the boundary slice and are remapped onto the next slab.
+     */
+    private static void mergeSlab( Slab slab, MeshArrays target, int nextBase ) {
+        int owned = slab.ownedVertexCount;
+        System.arraycopy(slab.out.getPositions(), 0, target.getPositions(), slab.vertexBase * 3, owned * 3);
+        System.arraycopy(slab.out.getNormals(), 0, target.getNormals(), slab.vertexBase * 3, owned * 3);
+
+        int[] source = slab.out.getIndexes();
+        int[] indexes = target.getIndexes();
+        int base = slab.vertexBase;
+        int next = nextBase - owned;
+        for( int i = 0, j = slab.indexBase, n = slab.out.getIndexCount(); i < n; i++, j++ ) {
+            int index = source[i];
+            indexes[j] = index < owned ? index + base : index + next;
+        }
+    }
+
+    /**
+     *  Sweeps the slices of the specified slab in x order.  After each
+     *  slice has been extracted the triangles for the cells in the
+     *  previous slice can be emitted because all of their edge vertexes
+     *  are then known.  If the slab is not the last one then the first
+     *  slice of the next slab is also extracted as a boundary slice.
+     */
+    private void sweepSlab( DensityVolume volume, Slab slab ) {
+
+        // Gradient normals need the planes on either side of the edge
+        // planes.  Plane cx - 1 is the last one that has x edges so
+        // plane cx is the last one that ever has to be sampled.
+        boolean gradients = normalType == NormalType.Gradient;
+        int sampled = slab.x0 - (gradients ? 2 : 1);
+
+        int last = slab.x1 < cx ? slab.x1 : cx - 1;
+        for( int x = slab.x0; x <= last; x++ ) {
+            int needed = gradients ? Math.min(x + 2, cx) : x + 1;
+            while( sampled < needed ) {
+                sampled++;
+                samplePlane(volume, slab, sampled, slab.densities[sampled & 3], gradients);
+            }
+
+            int current = x & 1;
+            if( x == slab.x1 ) {
+                slab.ownedVertexCount = slab.out.getVertexCount();
             }
+            extractSlice(volume, slab, x, slab.masks[current], slab.edges[current]);
+            if( x > slab.x0 ) {
+                emitSlice(slab, slab.masks[current ^ 1], slab.edges[current ^ 1], slab.edges[current]);
+            }
+        }
+        if( slab.x1 >= cx ) {
+            slab.ownedVertexCount = slab.out.getVertexCount();
         }
+    }
 
-        int[] triIndexes = new int[triangleCount * 3];
-        int triIndexIndex = 0;
+    /**
+     *  Samples the densities of the cell corners in the specified x plane
+     *  of corners.  Corner densities are stored z-major including the
+     *  volume border, (z + 1) * (cy + 2) + y + 1, and each corner is read
+     *  from the volume only once per slab.  The border rows are only
+     *  sampled when they are needed for gradients.  Corners that are only
+     *  used by skipped blocks of cells are not sampled at all.
+     */
+    private void samplePlane( DensityVolume volume, Slab slab, int x, float[] densities, boolean borderRows ) {
+
+        // Corners are used by the cells on either side of them and,
+        // for gradients, by the cells one further out.
+        int reach = borderRows ? 2 : 1;
+        boolean[] active = null;
+        if( slab.context.skipping ) {
+            active = slab.activeBlocks;
+            if( !findActiveBlocks(slab.context.skipBlocks, x, reach, active) ) {
+                return;
+            }
+        }
 
-        // Now let's just visit the non-empty cells and spin out the
-        // shared triangles' indexes.
-        int cycz = cy * cz;
-        for( int c = 0; c < cellCount; c++ ) {
-
-            int index = cells[c];
-            int mask = masks[index];
-            int x = index / (cycz);
-            int y = (index % (cycz)) / cz;
-            int z = index % cz;
-
-            int[][] triangles = MarchingCubesConstants.triEdges[mask];
-            if( triangles.length == 0 ) {
-                throw new RuntimeException("Algorithm inconsistency detected.");
-                //System.out.println( "****** How did this happen? ******" );
-                //continue;
+        int sx = x + border;
+        int ny = cy + 2;
+        int min = borderRows ? -1 : 0;
+        if( active == null ) {
+            // Every corner is needed so read whole rows at a time
+            if( borderRows ) {
+                volume.sample(sx, min + border, min + border, 1, ny, cz + 2, densities, 0);
+                return;
+            }
+            for( int z = min; z <= cz; z++ ) {
+                volume.sample(sx, min + border, z + border, 1, cy + 1 - min, 1, densities,
+                              (z + 1) * ny + min + 1);
+            }
+            return;
+        }
+        for( int z = min; z <= cz; z++ ) {
+            int index = (z + 1) * ny + min + 1;
+            for( int y = min; y <= cy; y++, index++ ) {
+                if( !isCornerNeeded(active, y, z, reach) ) {
+                    continue;
+                }
+                densities[index] = volume.getDensity(sx, y + border, z + border);
+            }
+        }
+    }
+
+    /**
+     *  Fills the specified y, z block array with the blocks that have
+     *  at least one non-skipped block within reach of the specified
+     *  x plane of corners.  Returns false if there are none.
+     */
+    private boolean findActiveBlocks( boolean[] skipBlocks, int x, int reach, boolean[] active ) {
+        int xStart = Math.max(0, x - reach) / BLOCK_SIZE;
+        int xEnd = Math.min(cx - 1, x + reach - 1) / BLOCK_SIZE;
+        boolean any = false;
+        int yz = blocksY * blocksZ;
+        for( int i = 0; i < yz; i++ ) {
+            boolean found = false;
+            for( int b = xStart; b <= xEnd && !found; b++ ) {
+                found = !skipBlocks[b * yz + i];
+            }
+            active[i] = found;
+            any |= found;
+        }
+        return any;
+    }
+
+    /**
+     *  Returns true if any of the cells within reach of the specified
+     *  corner are in an active block.
+     */
+    private boolean isCornerNeeded( boolean[] active, int y, int z, int reach ) {
+        int yStart = Math.max(0, y - reach) / BLOCK_SIZE;
+        int yEnd = Math.min(cy - 1, y + reach - 1) / BLOCK_SIZE;
+        int zStart = Math.max(0, z - reach) / BLOCK_SIZE;
+        int zEnd = Math.min(cz - 1, z + reach - 1) / BLOCK_SIZE;
+        for( int j = yStart; j <= yEnd; j++ ) {
+            for( int k = zStart; k <= zEnd; k++ ) {
+                if( active[j * blocksZ + k] ) {
+                    return true;
+                }
             }
+        }
+        return false;
+    }
+
+    /**
+     *  Computes the cell masks and the lower edge vertexes for the cells
+     *  in the specified x slice from the corner densities of the planes
+     *  on either side of it.  Edge vertexes are stored as three slots per
+     *  cell, (y * cz + z) * 3 + slot, for the y, x and z edges starting at
+     *  the cell's lower corner.
+     */
+    private void extractSlice( DensityVolume volume, Slab slab, int x, int[] masks, int[] edges ) {
 
-            for (int[] triEdges : triangles) {
-
-                for (int i = 0; i < 3; i++) {
-                    int vertIndex;
-                    switch (triEdges[i]) {
-                        case 0:
-                            vertIndex = edgeVerts[x][y][z][0];
-                            break;
-                        case 1:
-                            vertIndex = edgeVerts[x][y + 1][z][1];
-                            break;
-                        case 2:
-                            vertIndex = edgeVerts[x + 1][y][z][0];
-                            break;
-                        case 3:
-                            vertIndex = edgeVerts[x][y][z][1];
-                            break;
-                        case 4:
-                            vertIndex = edgeVerts[x][y][z + 1][0];
-                            break;
-                        case 5:
-                            vertIndex = edgeVerts[x][y + 1][z + 1][1];
-                            break;
-                        case 6:
-                            vertIndex = edgeVerts[x + 1][y][z + 1][0];
-                            break;
-                        case 7:
-                            vertIndex = edgeVerts[x][y][z + 1][1];
-                            break;
-                        case 8:
-                            vertIndex = edgeVerts[x][y][z][2];
-                            break;
-                        case 9:
-                            vertIndex = edgeVerts[x][y + 1][z][2];
-                            break;
-                        case 10:
-                            vertIndex = edgeVerts[x + 1][y + 1][z][2];
-                            break;
-                        case 11:
-                            vertIndex = edgeVerts[x + 1][y][z][2];
-                            break;
-                        default:
-                            throw new RuntimeException("Unknown edge:" + triEdges[i]);
-                    }
-
-                    triIndexes[triIndexIndex++] = vertIndex;
+        float[] near = slab.densities[x & 3];
+        float[] far = slab.densities[(x + 1) & 3];
+        int ny = cy + 2;
+        int maskIndex = 0;
+        int blockX = (x / BLOCK_SIZE) * blocksY;
+        boolean skipping = slab.context.skipping;
+        boolean[] skipBlocks = slab.context.skipBlocks;
+        for( int y = 0; y < cy; y++ ) {
+            int blockRow = (blockX + y / BLOCK_SIZE) * blocksZ;
+            for( int z = 0; z < cz; z++, maskIndex++ ) {
+                if( skipping && skipBlocks[blockRow + z / BLOCK_SIZE] ) {
+                    // Homogeneous, so no triangles
+                    masks[maskIndex] = 0;
+                    continue;
+                }
+                int c0 = (z + 1) * ny + y + 1;
+                int c1 = c0 + ny;
+                float d = near[c0];
+
+                int bits = 0;
+                bits |= solid(d);
+                bits |= solid(near[c0 + 1]) << 1;
+                bits |= solid(far[c0 + 1]) << 2;
+                bits |= solid(far[c0]) << 3;
+                bits |= solid(near[c1]) << 4;
+                bits |= solid(near[c1 + 1]) << 5;
+                bits |= solid(far[c1 + 1]) << 6;
+                bits |= solid(far[c1]) << 7;
+                masks[maskIndex] = bits;
+
+                if( MarchingCubesConstants.caseCounts[bits] == 0 ) {
+                    continue;
+                }
+                int edgeHit = MarchingCubesConstants.caseEdgeMasks[bits];
+
+                // The density field is theoretically cx * cy * cz which
+                // means that we only need to generate cells for cx - 1, cy -1, cz -1
+                // We generate extra cells to make sure we have the edges we need...
+                // but these cells are technically outside of the field and
+                // we will need to skip them later.  Also, I guess we can avoid
+                // generating some extra vertexes that would stick out.
+                int edgeIndex = maskIndex * 3;
+                if( (edgeHit & (1 << 0)) != 0 && y < cy - 1 ) {
+                    edges[edgeIndex] = addEdgeVertex(volume, slab, x, y, z, c0, Y_AXIS, d, near[c0 + 1]);
+                }
+                if( (edgeHit & (1 << 3)) != 0 && x < cx - 1 ) {
+                    edges[edgeIndex + 1] = addEdgeVertex(volume, slab, x, y, z, c0, X_AXIS, d, far[c0]);
+                }
+                if( (edgeHit & (1 << 8)) != 0 && z < cz - 1 ) {
+                    edges[edgeIndex + 2] = addEdgeVertex(volume, slab, x, y, z, c0, Z_AXIS, d, near[c1]);
                 }
             }
         }
+    }
 
-        Vector3f[] vertArray = new Vector3f[verts.size()];
-        vertArray = verts.toArray(vertArray);
+    /**
+     *  Emits the triangles for the non-border cells of a slice using
+     *  the edge vertexes of that slice and of the slice after it.
+     */
+    private void emitSlice( Slab slab, int[] masks, int[] edges, int[] next ) {
 
-        Vector3f[] normArray = new Vector3f[normals.size()];
-        normArray = normals.toArray(normArray);
+        MeshArrays out = slab.out;
+        int[] caseEdges = MarchingCubesConstants.caseEdges;
 
-        Mesh mesh = new Mesh();
-        FloatBuffer pb = BufferUtils.createFloatBuffer(vertArray);
-        mesh.setBuffer(Type.Position, 3, pb);
-        FloatBuffer nb = BufferUtils.createFloatBuffer(normArray);
-        mesh.setBuffer(Type.Normal, 3, nb);
-        IntBuffer ib = BufferUtils.createIntBuffer(triIndexes);
-        mesh.setBuffer(Type.Index, 3, ib);
+        // Now let's just visit the non-empty cells and spin out the
+        // shared triangles' indexes.  The last row and column are
+        // the border cells and are skipped.
+        for( int y = 0; y < cy - 1; y++ ) {
+            for( int z = 0; z < cz - 1; z++ ) {
+
+                int cell = y * cz + z;
+                int mask = masks[cell];
+                int count = MarchingCubesConstants.caseCounts[mask];
+                if( count == 0 ) {
+                    continue;
+                }
+                int e = cell * 3;
 
-        mesh.updateBound();
+                for( int i = MarchingCubesConstants.caseOffsets[mask], end = i + count; i < end; i++ ) {
+                    int edge = caseEdges[i];
+                    int[] slice = edgeSlices[edge] == 0 ? edges : next;
+                    out.addIndex(slice[e + edgeOffsets[edge]]);
+                }
+            }
+        }
+    }
 
-        return mesh;
+    /**
+     *  The working state for one slab of cells from x0 to x1.  Each slab
+     *  keeps the masks and edge vertex indexes for two slices and
+     *  collects its own vertexes and triangles so that slabs can be
+     *  extracted independently of each other.
+     */
+    private static class Slab {
+        final Context context;
+        final int[][] masks;
+        final int[][] edges;
+        final float[][] densities;
+        final boolean[] activeBlocks;
+        final Vector3f tempNormal = new Vector3f();
+        final Vector3f tempNormal2 = new Vector3f();
+        int x0;
+        int x1;
+        int ownedVertexCount;
+        int vertexBase;
+        int indexBase;
+        MeshArrays out;
+        MeshArrays ownOut;
+
+        Slab( Context context, int sliceSize, int planeSize, int blockCount ) {
+            this.context = context;
+            this.masks = new int[2][sliceSize];
+            this.edges = new int[2][sliceSize * 3];
+            this.densities = new float[4][planeSize];
+            this.activeBlocks = new boolean[blockCount];
+        }
     }
-}
 
+    /**
+     *  The scratch state of one build: the block skipping flags, the
+     *  slabs with their slice arrays, the staging arrays and the
+     *  transition cell builder.  A context can be used by any generator
+     *  of the same chunk size but only by one build at a time.
+     */
+    public static final class Context {
+        private final long sizeClass;
+        private final int sliceSize;
+        private final int planeSize;
+        private final int blockRowSize;
+        private final boolean[] skipBlocks;
+        private final float[] range = new float[2];
+        private boolean skipping;
+        private final MeshArrays arrays = new MeshArrays();
+        private Slab[] slabs = new Slab[0];
+        private TransitionCellBuilder transitions;
+
+        private Context( MarchingCubesMeshGenerator generator ) {
+            this.sizeClass = generator.sizeClass;
+            this.sliceSize = generator.cy * generator.cz;
+            this.planeSize = (generator.cy + 2) * (generator.cz + 2);
+            this.blockRowSize = generator.blocksY * generator.blocksZ;
+            this.skipBlocks = new boolean[generator.blocksX * blockRowSize];
+        }
 
+        private Slab[] getSlabs( int count ) {
+            if( slabs.length < count ) {
+                Slab[] array = new Slab[count];
+                for( int i = 0; i < count; i++ ) {
+                    array[i] = i < slabs.length ? slabs[i] : new Slab(this, sliceSize, planeSize, blockRowSize);
+                }
+                slabs = array;
+            }
+            return slabs;
+        }
+    }
+}
@@ -1,16 +1,11 @@
 package com.jayfella.mesh;
 
-import com.jme3.math.Vector2f;
 import com.jme3.math.Vector3f;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.util.BufferUtils;
 
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * Derived from Sebastian Lague's Youtube Series: Procedural Cave Generation
@@ -21,159 +16,236 @@ import java.util.List;
  */
 public class MarchingSquaresMeshGenerator {
 
-    public SquareGrid squareGrid;
-    List<Vector3f> vertices;
-    List<Integer> triangles;
+    // The scratch contexts shared by all generators, by map size.
+    private static final ScratchPool<Context> CONTEXTS = new ScratchPool<>();
 
+    private VertexFormat vertexFormat = VertexFormat.Float;
+    private boolean interleaved;
+
+    /**
+     * Sets the format of the position and normal buffers of built meshes. With a quantized format the geometry
+     * must be scaled by getPositionScale(). Defaults to VertexFormat.Float.
+     */
+    public void setVertexFormat(VertexFormat vertexFormat) {
+        if (vertexFormat == null) {
+            throw new IllegalArgumentException("Vertex format cannot be null");
+        }
+        this.vertexFormat = vertexFormat;
+    }
+
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
+    }
+
+    /**
+     * Sets whether built meshes store their vertex attributes interleaved in a single buffer. Defaults to false.
+     */
+    public void setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+    }
+
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     * Returns the scale that quantized positions of a mesh built from the given map are divided by, which is half
+     * of the larger map dimension since the map is centered on the origin.
+     */
+    public float getPositionScale(boolean[][] map, float squareSize) {
+        return Math.max(map.length, map[0].length) * squareSize * 0.5f;
+    }
+
+    /**
+     * Builds a mesh from the given map. The grid and staging arrays of the build come from a pool of contexts
+     * shared by all generators, so one generator may build on any number of threads at once as long as its
+     * settings are not changed at the same time.
+     */
     public Mesh buildMesh(boolean[][] map, float squareSize) {
 
-        squareGrid = new SquareGrid(map, squareSize);
+        long sizeClass = ScratchPool.sizeClass(map.length, map[0].length, 1);
+        Context context = CONTEXTS.acquire(sizeClass, Context::new);
+        try {
+            return buildMesh(map, squareSize, context);
+        } finally {
+            CONTEXTS.release(sizeClass, context);
+        }
+    }
 
-        vertices = new ArrayList<>();
-        triangles = new ArrayList<>();
+    /**
+     * Triangulates the given map and writes the result to the given sink instead of creating a Mesh, so no direct
+     * buffers are allocated. The normals all point up.
+     */
+    public void writeMesh(boolean[][] map, float squareSize, MeshSink sink) {
+
+        long sizeClass = ScratchPool.sizeClass(map.length, map[0].length, 1);
+        Context context = CONTEXTS.acquire(sizeClass, Context::new);
+        try {
+            triangulate(map, squareSize, context).writeTo(sink);
+        } finally {
+            CONTEXTS.release(sizeClass, context);
+        }
+    }
+
+    private MeshArrays triangulate(boolean[][] map, float squareSize, Context context) {
+
+        SquareGrid squareGrid = context.getGrid(map, squareSize);
+        MeshArrays arrays = context.arrays;
+        arrays.clear();
 
         for (int x = 0; x < squareGrid.squares[0].length; x ++) {
             for (int y = 0; y < squareGrid.squares[1].length; y ++) {
-                TriangulateSquare(squareGrid.squares[x][y]);
+                TriangulateSquare(squareGrid.squares[x][y], arrays);
             }
         }
+        return arrays;
+    }
 
-        Mesh mesh = new Mesh();
-
-        Vector3f[] vertArray = vertices.toArray(new Vector3f[0]);
-        FloatBuffer pb = BufferUtils.createFloatBuffer(vertArray);
-        mesh.setBuffer(VertexBuffer.Type.Position, 3, pb);
+    private Mesh buildMesh(boolean[][] map, float squareSize, Context context) {
 
-        Vector3f[] normArray = new Vector3f[vertArray.length];
-        Arrays.fill(normArray, new Vector3f(0, 1, 0));
-        FloatBuffer nb = BufferUtils.createFloatBuffer(normArray);
-        mesh.setBuffer(VertexBuffer.Type.Normal, 3, nb);
+        MeshArrays arrays = triangulate(map, squareSize, context);
 
-        int[] triIndexes = new int[triangles.size()];
-        for (int i = 0; i < triIndexes.length; i++) {
-            triIndexes[i] = triangles.get(i);
-        }
+        Mesh mesh = new Mesh();
 
-        IntBuffer ib = BufferUtils.createIntBuffer(triIndexes);
-        mesh.setBuffer(VertexBuffer.Type.Index, 3, ib);
+        int vertexCount = arrays.getVertexCount();
+        float[] positions = arrays.getPositions();
+        MeshBuffers.setVertexBuffers(mesh, positions, arrays.getNormals(), vertexCount, vertexFormat,
+                getPositionScale(map, squareSize));
 
-        Vector2f[] uvs = new Vector2f[vertArray.length];
+        MeshBuffers.setIndexBuffer(mesh, arrays.getIndexes(), arrays.getIndexCount(), vertexCount);
 
         int tileCountX = map[0].length;
         int tileCountY = map[0].length;
 
-        for (int i =0; i < uvs.length; i ++) {
+        FloatBuffer uvb = BufferUtils.createFloatBuffer(vertexCount * 2);
+        for (int i = 0; i < vertexCount; i ++) {
 
-            float percentX = (vertArray[i].x / map[0].length) * tileCountX;
-            float percentY = (vertArray[i].z / map[1].length) * tileCountY;
+            float percentX = (positions[i * 3] / map[0].length) * tileCountX;
+            float percentY = (positions[i * 3 + 2] / map[1].length) * tileCountY;
 
-            uvs[i] = new Vector2f(percentX,percentY);
+            uvb.put(percentX).put(percentY);
         }
-        FloatBuffer uvb = BufferUtils.createFloatBuffer(uvs);
+        uvb.flip();
         mesh.setBuffer(VertexBuffer.Type.TexCoord, 2, uvb);
 
-        // we don't need these anymore.
-        vertices.clear();
-        triangles.clear();
-        squareGrid = null;
-
-        mesh.updateBound();
+        if (interleaved) {
+            MeshBuffers.setInterleaved(mesh);
+        }
 
         return mesh;
     }
 
-    void TriangulateSquare(Square square) {
+    void TriangulateSquare(Square square, MeshArrays arrays) {
         switch (square.configuration) {
             case 0:
                 break;
 
             // 1 points:
             case 1:
-                MeshFromPoints(square.centreBottom, square.bottomLeft, square.centreLeft);
+                MeshFromPoints(arrays, square.centreBottom, square.bottomLeft, square.centreLeft);
                 break;
             case 2:
-                MeshFromPoints(square.centreRight, square.bottomRight, square.centreBottom);
+                MeshFromPoints(arrays, square.centreRight, square.bottomRight, square.centreBottom);
                 break;
             case 4:
-                MeshFromPoints(square.centreTop, square.topRight, square.centreRight);
+                MeshFromPoints(arrays, square.centreTop, square.topRight, square.centreRight);
                 break;
             case 8:
-                MeshFromPoints(square.topLeft, square.centreTop, square.centreLeft);
+                MeshFromPoints(arrays, square.topLeft, square.centreTop, square.centreLeft);
                 break;
 
             // 2 points:
             case 3:
-                MeshFromPoints(square.centreRight, square.bottomRight, square.bottomLeft, square.centreLeft);
+                MeshFromPoints(arrays, square.centreRight, square.bottomRight, square.bottomLeft, square.centreLeft);
                 break;
             case 6:
-                MeshFromPoints(square.centreTop, square.topRight, square.bottomRight, square.centreBottom);
+                MeshFromPoints(arrays, square.centreTop, square.topRight, square.bottomRight, square.centreBottom);
                 break;
             case 9:
-                MeshFromPoints(square.topLeft, square.centreTop, square.centreBottom, square.bottomLeft);
+                MeshFromPoints(arrays, square.topLeft, square.centreTop, square.centreBottom, square.bottomLeft);
                 break;
             case 12:
-                MeshFromPoints(square.topLeft, square.topRight, square.centreRight, square.centreLeft);
+                MeshFromPoints(arrays, square.topLeft, square.topRight, square.centreRight, square.centreLeft);
                 break;
             case 5:
-                MeshFromPoints(square.centreTop, square.topRight, square.centreRight, square.centreBottom, square.bottomLeft, square.centreLeft);
+                MeshFromPoints(arrays, square.centreTop, square.topRight, square.centreRight, square.centreBottom, square.bottomLeft, square.centreLeft);
                 break;
             case 10:
-                MeshFromPoints(square.topLeft, square.centreTop, square.centreRight, square.bottomRight, square.centreBottom, square.centreLeft);
+                MeshFromPoints(arrays, square.topLeft, square.centreTop, square.centreRight, square.bottomRight, square.centreBottom, square.centreLeft);
                 break;
 
             // 3 point:
             case 7:
-                MeshFromPoints(square.centreTop, square.topRight, square.bottomRight, square.bottomLeft, square.centreLeft);
+                MeshFromPoints(arrays, square.centreTop, square.topRight, square.bottomRight, square.bottomLeft, square.centreLeft);
                 break;
             case 11:
-                MeshFromPoints(square.topLeft, square.centreTop, square.centreRight, square.bottomRight, square.bottomLeft);
+                MeshFromPoints(arrays, square.topLeft, square.centreTop, square.centreRight, square.bottomRight, square.bottomLeft);
                 break;
             case 13:
-                MeshFromPoints(square.topLeft, square.topRight, square.centreRight, square.centreBottom, square.bottomLeft);
+                MeshFromPoints(arrays, square.topLeft, square.topRight, square.centreRight, square.centreBottom, square.bottomLeft);
                 break;
             case 14:
-                MeshFromPoints(square.topLeft, square.topRight, square.bottomRight, square.centreBottom, square.centreLeft);
+                MeshFromPoints(arrays, square.topLeft, square.topRight, square.bottomRight, square.centreBottom, square.centreLeft);
                 break;
 
             // 4 point:
             case 15:
-                MeshFromPoints(square.topLeft, square.topRight, square.bottomRight, square.bottomLeft);
+                MeshFromPoints(arrays, square.topLeft, square.topRight, square.bottomRight, square.bottomLeft);
                 break;
         }
 
     }
 
-    void MeshFromPoints(Node... points) {
-        AssignVertices(points);
+    void MeshFromPoints(MeshArrays arrays, Node... points) {
+        AssignVertices(arrays, points);
 
         if (points.length >= 3)
-            CreateTriangle(points[0], points[1], points[2]);
+            CreateTriangle(arrays, points[0], points[1], points[2]);
         if (points.length >= 4)
-            CreateTriangle(points[0], points[2], points[3]);
+            CreateTriangle(arrays, points[0], points[2], points[3]);
         if (points.length >= 5)
-            CreateTriangle(points[0], points[3], points[4]);
+            CreateTriangle(arrays, points[0], points[3], points[4]);
         if (points.length >= 6)
-            CreateTriangle(points[0], points[4], points[5]);
+            CreateTriangle(arrays, points[0], points[4], points[5]);
 
     }
 
-    void AssignVertices(Node[] points) {
+    void AssignVertices(MeshArrays arrays, Node[] points) {
         for (Node point : points) {
             if (point.vertexIndex == -1) {
-                point.vertexIndex = vertices.size();
-                vertices.add(point.position);
+                Vector3f p = point.position;
+                point.vertexIndex = arrays.addVertex(p.x, p.y, p.z, 0, 1, 0);
             }
         }
     }
 
-    void CreateTriangle(Node a, Node b, Node c) {
-        triangles.add(a.vertexIndex);
-        triangles.add(b.vertexIndex);
-        triangles.add(c.vertexIndex);
+    void CreateTriangle(MeshArrays arrays, Node a, Node b, Node c) {
+        arrays.addTriangle(a.vertexIndex, b.vertexIndex, c.vertexIndex);
+    }
+
+    /**
+     * The scratch state of one build. The grid is kept and only its active flags are reset when the next map
+     * has the same size and square size.
+     */
+    private static class Context {
+        private final MeshArrays arrays = new MeshArrays();
+        private SquareGrid grid;
+        private float squareSize;
+
+        SquareGrid getGrid(boolean[][] map, float squareSize) {
+            if (grid == null || this.squareSize != squareSize) {
+                grid = new SquareGrid(map, squareSize);
+                this.squareSize = squareSize;
+            } else {
+                grid.reset(map);
+            }
+            return grid;
+        }
     }
 
     private static class SquareGrid {
         private final Square[][] squares;
+        private final ControlNode[][] controlNodes;
 
         public SquareGrid(boolean[][] map, float squareSize) {
             int nodeCountX = map[0].length;
@@ -181,7 +253,7 @@ public class MarchingSquaresMeshGenerator {
             float mapWidth = nodeCountX * squareSize;
             float mapHeight = nodeCountY * squareSize;
 
-            ControlNode[][] controlNodes = new ControlNode[nodeCountX][nodeCountY];
+            controlNodes = new ControlNode[nodeCountX][nodeCountY];
 
             for (int x = 0; x < nodeCountX; x ++) {
                 for (int y = 0; y < nodeCountY; y ++) {
@@ -198,6 +270,26 @@ public class MarchingSquaresMeshGenerator {
             }
 
         }
+
+        /**
+         * Reuses the grid for a map of the same size.
+         */
+        void reset(boolean[][] map) {
+            for (int x = 0; x < controlNodes.length; x ++) {
+                for (int y = 0; y < controlNodes[x].length; y ++) {
+                    ControlNode node = controlNodes[x][y];
+                    node.active = map[x][y];
+                    ((Node) node).vertexIndex = -1;
+                    node.above.vertexIndex = -1;
+                    node.right.vertexIndex = -1;
+                }
+            }
+            for (Square[] row : squares) {
+                for (Square square : row) {
+                    square.updateConfiguration();
+                }
+            }
+        }
     }
 
     private static class Square {
@@ -217,6 +309,12 @@ public class MarchingSquaresMeshGenerator {
             centreBottom = bottomLeft.right;
             centreLeft = bottomLeft.above;
 
+            updateConfiguration();
+        }
+
+        void updateConfiguration() {
+            configuration = 0;
+
             // we could probably use bitmasking instead of math here.
             // we can also use this data to determine which part of a tilemap to show.
             // if each vertex has a material index in its mesh, we can also set "materials".
@@ -244,7 +342,7 @@ public class MarchingSquaresMeshGenerator {
 
     private static class ControlNode extends Node {
 
-        private final boolean active;
+        private boolean active;
         private final Node above, right;
 
 		public ControlNode(Vector3f _pos, boolean _active, float squareSize) {
@@ -0,0 +1,220 @@
+package com.jayfella.mesh;
+
+import com.jme3.scene.Mesh;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ *  Growable primitive staging arrays for generated mesh data.  Positions
+ *  and normals are stored as packed x, y, z floats and triangles as packed
+ *  vertex indexes so that generators can build up a mesh without creating
+ *  any per-vertex objects.  The backing arrays are kept when the instance
+ *  is cleared so one instance can be reused for any number of builds.
+ *
+ *  <p>As a MeshSink it collects the output of any generator for
+ *  createMesh() or for copying into caller owned buffers.</p>
+ */
+public class MeshArrays implements MeshSink {
+
+    private float[] positions;
+    private float[] normals;
+    private int[] indexes;
+    private int vertexCount;
+    private int indexCount;
+
+    public MeshArrays() {
+        this(1024, 1024 * 3);
+    }
+
+    public MeshArrays( int vertexCapacity, int indexCapacity ) {
+        this.positions = new float[Math.max(1, vertexCapacity) * 3];
+        this.normals = new float[Math.max(1, vertexCapacity) * 3];
+        this.indexes = new int[Math.max(3, indexCapacity)];
+    }
+
+    /**
+     *  Resets the vertex and index counts.  The backing arrays are kept.
+     */
+    public void clear() {
+        vertexCount = 0;
+        indexCount = 0;
+    }
+
+    /**
+     *  Sets the vertex and index counts, growing the backing arrays as
+     *  needed.  Existing values are kept and any newly exposed values
+     *  are undefined until written through the backing arrays.
+     */
+    public void resize( int vertexCount, int indexCount ) {
+        if( vertexCount * 3 > positions.length ) {
+            int size = Math.max(vertexCount * 3, positions.length * 2);
+            positions = Arrays.copyOf(positions, size);
+            normals = Arrays.copyOf(normals, size);
+        }
+        if( indexCount > indexes.length ) {
+            indexes = Arrays.copyOf(indexes, Math.max(indexCount, indexes.length * 2));
+        }
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public int getTriangleCount() {
+        return indexCount / 3;
+    }
+
+    /**
+     *  Returns the backing position array.  Only the first
+     *  getVertexCount() * 3 values are valid.
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     *  Returns the backing normal array.  Only the first
+     *  getVertexCount() * 3 values are valid.
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     *  Returns the backing index array.  Only the first
+     *  getIndexCount() values are valid.
+     */
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     *  Adds a vertex and returns its index.
+     */
+    @Override
+    public int addVertex( float x, float y, float z, float nx, float ny, float nz ) {
+        int i = vertexCount * 3;
+        if( i + 3 > positions.length ) {
+            int size = Math.max(i + 3, positions.length * 2);
+            positions = Arrays.copyOf(positions, size);
+            normals = Arrays.copyOf(normals, size);
+        }
+        positions[i] = x;
+        positions[i + 1] = y;
+        positions[i + 2] = z;
+        normals[i] = nx;
+        normals[i + 1] = ny;
+        normals[i + 2] = nz;
+        return vertexCount++;
+    }
+
+    @Override
+    public void addTriangle( int a, int b, int c ) {
+        if( indexCount + 3 > indexes.length ) {
+            indexes = Arrays.copyOf(indexes, Math.max(indexCount + 3, indexes.length * 2));
+        }
+        indexes[indexCount++] = a;
+        indexes[indexCount++] = b;
+        indexes[indexCount++] = c;
+    }
+
+    @Override
+    public void addVertexes( float[] positions, float[] normals, int count ) {
+        int start = vertexCount;
+        resize(vertexCount + count, indexCount);
+        System.arraycopy(positions, 0, this.positions, start * 3, count * 3);
+        System.arraycopy(normals, 0, this.normals, start * 3, count * 3);
+    }
+
+    @Override
+    public void addTriangles( int[] indexes, int count, int baseVertex ) {
+        int start = indexCount;
+        resize(vertexCount, indexCount + count);
+        if( baseVertex == 0 ) {
+            System.arraycopy(indexes, 0, this.indexes, start, count);
+            return;
+        }
+        for( int i = 0; i < count; i++ ) {
+            this.indexes[start + i] = indexes[i] + baseVertex;
+        }
+    }
+
+    public void addIndex( int index ) {
+        if( indexCount == indexes.length ) {
+            indexes = Arrays.copyOf(indexes, indexes.length * 2);
+        }
+        indexes[indexCount++] = index;
+    }
+
+    /**
+     *  Writes the current contents to the specified sink, numbering the
+     *  vertexes from the sink's current vertex count.
+     */
+    public void writeTo( MeshSink sink ) {
+        int base = sink.getVertexCount();
+        sink.addVertexes(positions, normals, vertexCount);
+        sink.addTriangles(indexes, indexCount, base);
+    }
+
+    /**
+     *  Copies the valid positions into the specified buffer at its
+     *  current position.
+     */
+    public FloatBuffer writePositions( FloatBuffer target ) {
+        return target.put(positions, 0, vertexCount * 3);
+    }
+
+    /**
+     *  Copies the valid normals into the specified buffer at its
+     *  current position.
+     */
+    public FloatBuffer writeNormals( FloatBuffer target ) {
+        return target.put(normals, 0, vertexCount * 3);
+    }
+
+    /**
+     *  Copies the valid indexes into the specified buffer at its
+     *  current position.
+     */
+    public IntBuffer writeIndexes( IntBuffer target ) {
+        return target.put(indexes, 0, indexCount);
+    }
+
+    /**
+     *  Creates a new Mesh with direct position, normal and index buffers
+     *  holding a copy of the current contents.  The indexes are 16 bit
+     *  when the vertex count allows it.
+     */
+    public Mesh createMesh() {
+        return createMesh(VertexFormat.Float, 1, false);
+    }
+
+    /**
+     *  Creates a new Mesh holding a copy of the current contents with the
+     *  positions and normals in the specified format.  For the quantized
+     *  formats positions are divided by positionScale, see
+     *  MeshBuffers.setVertexBuffers().  If interleaved is true then the
+     *  vertex attributes are interleaved into a single buffer.
+     */
+    public Mesh createMesh( VertexFormat format, float positionScale, boolean interleaved ) {
+        Mesh mesh = new Mesh();
+
+        MeshBuffers.setVertexBuffers(mesh, positions, normals, vertexCount, format, positionScale);
+        MeshBuffers.setIndexBuffer(mesh, indexes, indexCount, vertexCount);
+
+        if( interleaved ) {
+            MeshBuffers.setInterleaved(mesh);
+        }
+
+        return mesh;
+    }
+}
@@ -0,0 +1,266 @@
+package com.jayfella.mesh;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ *  Shared helpers for building the output buffers of generated meshes.
+ *
+ *  <p>Index buffers are created as 16 bit unsigned shorts whenever every
+ *  vertex index fits, which halves the index memory and upload size of
+ *  most chunks, and as 32 bit ints otherwise.  Byte indexes are never
+ *  used because many drivers handle them poorly.</p>
+ *
+ *  <p>Positions and normals are written in one of the VertexFormats.
+ *  The quantized formats use jME's normalized Short and Byte vertex
+ *  buffer formats which the GPU converts back to floats.</p>
+ */
+public final class MeshBuffers {
+
+    /**
+     *  The largest vertex count that can be indexed with unsigned
+     *  16 bit indexes.
+     */
+    public static final int MAX_SHORT_VERTEX_COUNT = 65536;
+
+    private MeshBuffers() {
+    }
+
+    /**
+     *  Returns true if a mesh with the specified number of vertexes can
+     *  use 16 bit indexes.
+     */
+    public static boolean isShortIndexable( int vertexCount ) {
+        return vertexCount <= MAX_SHORT_VERTEX_COUNT;
+    }
+
+    /**
+     *  Creates an empty direct index buffer with room for the specified
+     *  number of indexes into a mesh with the specified number of
+     *  vertexes.  The result is either a ShortBuffer or an IntBuffer and
+     *  can be written through IndexBuffer.wrapIndexBuffer().
+     */
+    public static Buffer createIndexBuffer( int vertexCount, int indexCount ) {
+        if( isShortIndexable(vertexCount) ) {
+            return BufferUtils.createShortBuffer(indexCount);
+        }
+        return BufferUtils.createIntBuffer(indexCount);
+    }
+
+    /**
+     *  Creates a direct index buffer holding the first count values of
+     *  the specified indexes, ready to be read.
+     */
+    public static Buffer createIndexBuffer( int[] indexes, int count, int vertexCount ) {
+        if( isShortIndexable(vertexCount) ) {
+            ShortBuffer sb = BufferUtils.createShortBuffer(count);
+            for( int i = 0; i < count; i++ ) {
+                sb.put((short)indexes[i]);
+            }
+            sb.flip();
+            return sb;
+        }
+        IntBuffer ib = BufferUtils.createIntBuffer(count);
+        ib.put(indexes, 0, count).flip();
+        return ib;
+    }
+
+    /**
+     *  Sets the triangle index buffer of the specified mesh to the first
+     *  count values of the specified indexes.
+     */
+    public static void setIndexBuffer( Mesh mesh, int[] indexes, int count, int vertexCount ) {
+        setIndexBuffer(mesh, createIndexBuffer(indexes, count, vertexCount));
+    }
+
+    /**
+     *  Sets the triangle index buffer of the specified mesh to a buffer
+     *  created by createIndexBuffer().  A mesh can switch between 16 and
+     *  32 bit indexes this way, which Mesh.setBuffer() does not allow.
+     */
+    public static void setIndexBuffer( Mesh mesh, Buffer buffer ) {
+        VertexBuffer.Format format = IndexBuffer.wrapIndexBuffer(buffer).getFormat();
+        VertexBuffer vb = mesh.getBuffer(VertexBuffer.Type.Index);
+        if( vb != null && vb.getFormat() != format ) {
+            mesh.clearBuffer(VertexBuffer.Type.Index);
+        }
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, format, buffer);
+    }
+
+    /**
+     *  Sets the position and normal buffers of the specified mesh to the
+     *  first vertexCount x, y, z values of the specified arrays in the
+     *  specified format, and sets the mesh bound.  For the quantized
+     *  formats positions are divided by positionScale, which must be at
+     *  least the largest absolute coordinate, and the bound is in those
+     *  divided units.  Float positions ignore the scale.
+     */
+    public static void setVertexBuffers( Mesh mesh, float[] positions, float[] normals, int vertexCount,
+                                         VertexFormat format, float positionScale ) {
+        switch( format ) {
+            case Float:
+                FloatBuffer pb = BufferUtils.createFloatBuffer(vertexCount * 3);
+                pb.put(positions, 0, vertexCount * 3).flip();
+                mesh.setBuffer(VertexBuffer.Type.Position, 3, pb);
+
+                FloatBuffer nb = BufferUtils.createFloatBuffer(vertexCount * 3);
+                nb.put(normals, 0, vertexCount * 3).flip();
+                mesh.setBuffer(VertexBuffer.Type.Normal, 3, nb);
+
+                mesh.updateBound();
+                break;
+            case Quantized:
+                setNormalized(mesh, VertexBuffer.Type.Position, 4, VertexBuffer.Format.Short,
+                              quantizePositions(positions, vertexCount, positionScale, 4));
+                setNormalized(mesh, VertexBuffer.Type.Normal, 4, VertexBuffer.Format.Byte,
+                              quantizeNormals(normals, vertexCount));
+                mesh.setBound(createBound(positions, vertexCount, positionScale));
+                break;
+            case QuantizedOctahedral:
+                setNormalized(mesh, VertexBuffer.Type.Position, 3, VertexBuffer.Format.Short,
+                              quantizePositions(positions, vertexCount, positionScale, 3));
+                setNormalized(mesh, VertexBuffer.Type.Normal, 2, VertexBuffer.Format.Byte,
+                              encodeOctahedral(normals, vertexCount));
+                mesh.setBound(createBound(positions, vertexCount, positionScale));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported vertex format:" + format);
+        }
+    }
+
+    private static void setNormalized( Mesh mesh, VertexBuffer.Type type, int components,
+                                       VertexBuffer.Format format, Buffer data ) {
+        // Replace rather than update in case the format changed
+        mesh.clearBuffer(type);
+        VertexBuffer vb = new VertexBuffer(type);
+        vb.setupData(VertexBuffer.Usage.Static, components, format, data);
+        vb.setNormalized(true);
+        mesh.setBuffer(vb);
+    }
+
+    /**
+     *  Interleaves the vertex attributes of the specified mesh into a
+     *  single buffer.
+     */
+    @SuppressWarnings("deprecation")
+    public static void setInterleaved( Mesh mesh ) {
+        // jME 3.3 deprecates Mesh.setInterleaved() without a replacement
+        mesh.setInterleaved();
+    }
+
+    /**
+     *  Returns the largest absolute coordinate of the first vertexCount
+     *  positions, which is the smallest valid position scale for them.
+     */
+    public static float getMaxExtent( float[] positions, int vertexCount ) {
+        float max = 0;
+        for( int i = 0; i < vertexCount * 3; i++ ) {
+            max = Math.max(max, Math.abs(positions[i]));
+        }
+        return max;
+    }
+
+    /**
+     *  Creates a direct buffer of the specified number of normalized
+     *  shorts per position, where any components after x, y, z are 0.
+     */
+    public static ShortBuffer quantizePositions( float[] positions, int vertexCount, float positionScale,
+                                                 int components ) {
+        if( positionScale <= 0 ) {
+            throw new IllegalArgumentException("Position scale must be positive:" + positionScale);
+        }
+        float scale = Short.MAX_VALUE / positionScale;
+        ShortBuffer sb = BufferUtils.createShortBuffer(vertexCount * components);
+        for( int v = 0; v < vertexCount; v++ ) {
+            for( int i = 0; i < components; i++ ) {
+                sb.put(i < 3 ? toShort(positions[v * 3 + i] * scale) : 0);
+            }
+        }
+        sb.flip();
+        return sb;
+    }
+
+    /**
+     *  Creates a direct buffer of four normalized bytes per normal, where
+     *  the fourth byte is 0.
+     */
+    public static ByteBuffer quantizeNormals( float[] normals, int vertexCount ) {
+        ByteBuffer bb = BufferUtils.createByteBuffer(vertexCount * 4);
+        for( int i = 0; i < vertexCount * 3; i += 3 ) {
+            bb.put(toByte(normals[i]));
+            bb.put(toByte(normals[i + 1]));
+            bb.put(toByte(normals[i + 2]));
+            bb.put((byte)0);
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     *  Creates a direct buffer of two normalized bytes per normal holding
+     *  the octahedral encoding of the normal: the normal is projected onto
+     *  the octahedron |x| + |y| + |z| = 1 and the lower half is folded over
+     *  the upper half, which maps every direction into the unit square.
+     */
+    public static ByteBuffer encodeOctahedral( float[] normals, int vertexCount ) {
+        ByteBuffer bb = BufferUtils.createByteBuffer(vertexCount * 2);
+        for( int i = 0; i < vertexCount * 3; i += 3 ) {
+            float x = normals[i];
+            float y = normals[i + 1];
+            float z = normals[i + 2];
+            float sum = Math.abs(x) + Math.abs(y) + Math.abs(z);
+            if( sum == 0 ) {
+                bb.put((byte)0).put((byte)0);
+                continue;
+            }
+            x /= sum;
+            y /= sum;
+            if( z < 0 ) {
+                float fx = (1 - Math.abs(y)) * (x >= 0 ? 1 : -1);
+                float fy = (1 - Math.abs(x)) * (y >= 0 ? 1 : -1);
+                x = fx;
+                y = fy;
+            }
+            bb.put(toByte(x)).put(toByte(y));
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static short toShort( float value ) {
+        return (short)Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+
+    private static byte toByte( float value ) {
+        return (byte)Math.max(-Byte.MAX_VALUE, Math.min(Byte.MAX_VALUE, Math.round(value * Byte.MAX_VALUE)));
+    }
+
+    private static BoundingBox createBound( float[] positions, int vertexCount, float positionScale ) {
+        if( vertexCount == 0 ) {
+            return new BoundingBox();
+        }
+        Vector3f min = new Vector3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+        Vector3f max = new Vector3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        for( int i = 0; i < vertexCount * 3; i += 3 ) {
+            min.x = Math.min(min.x, positions[i]);
+            min.y = Math.min(min.y, positions[i + 1]);
+            min.z = Math.min(min.z, positions[i + 2]);
+            max.x = Math.max(max.x, positions[i]);
+            max.y = Math.max(max.y, positions[i + 1]);
+            max.z = Math.max(max.z, positions[i + 2]);
+        }
+        min.divideLocal(positionScale);
+        max.divideLocal(positionScale);
+        return new BoundingBox(min, max);
+    }
+}
@@ -0,0 +1,247 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jme3.scene.Mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ *  Builds meshes on a fixed set of background threads.  The mesh
+ *  generators are not thread safe so each thread creates its own
+ *  generator from the supplier and only ever uses that one, ie:
+ *  <pre>
+ *  MeshBuildService&lt;Vector3i, MarchingCubesMeshGenerator&gt; service
+ *      = new MeshBuildService&lt;&gt;(4, () -&gt; new MarchingCubesMeshGenerator(32, 32, 32),
+ *                                 MarchingCubesMeshGenerator::buildMesh);
+ *  service.submit(chunkKey, distanceToCamera, volume).thenAccept(...);
+ *  </pre>
+ *
+ *  <p>Requests are built in order of priority, lowest value first, such
+ *  as the distance from the camera.  A request for a key that is still
+ *  waiting to be built is merged with the waiting request: the volume and
+ *  priority are replaced and the same future is returned, so a chunk that
+ *  is edited many times before it is built is only built once.  A request
+ *  whose future is cancelled before it starts is dropped without being
+ *  built.  A request that has already started runs to completion.</p>
+ *
+ *  <p>The futures are completed on the build threads with the built mesh,
+ *  or null when the volume produced no geometry.  Meshes still have to be
+ *  attached to the scene graph on the render thread.</p>
+ */
+public class MeshBuildService<K, G> {
+
+    private final Supplier<? extends G> generators;
+    private final BiFunction<? super G, ? super DensityVolume, Mesh> builder;
+    private final PriorityQueue<Request> queue = new PriorityQueue<>();
+    private final Map<K, Request> waiting = new HashMap<>();
+    private final Thread[] threads;
+    private long nextSequence;
+    private boolean shutdown;
+
+    /**
+     *  Creates a service that builds meshes on the specified number of
+     *  threads, each with its own generator from the specified supplier,
+     *  by calling the builder with the thread's generator and the
+     *  request's volume.
+     */
+    public MeshBuildService( int threadCount, Supplier<? extends G> generators,
+                             BiFunction<? super G, ? super DensityVolume, Mesh> builder ) {
+        if( threadCount < 1 ) {
+            throw new IllegalArgumentException("Thread count must be at least 1:" + threadCount);
+        }
+        this.generators = generators;
+        this.builder = builder;
+        this.threads = new Thread[threadCount];
+        for( int i = 0; i < threadCount; i++ ) {
+            threads[i] = new Thread(this::runBuilds, "MeshBuildService-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     *  Queues a build of the specified volume for the specified key and
+     *  returns the future of the mesh.  If a request for the key is still
+     *  waiting then it is updated to the new volume and priority and its
+     *  future is returned instead.
+     */
+    public synchronized CompletableFuture<Mesh> submit( K key, float priority, DensityVolume volume ) {
+        if( shutdown ) {
+            throw new IllegalStateException("Service is shut down");
+        }
+        Request request = waiting.get(key);
+        if( request != null ) {
+            request.volume = volume;
+            if( request.priority != priority ) {
+                queue.remove(request);
+                request.priority = priority;
+                queue.add(request);
+            }
+            return request.future;
+        }
+
+        request = new Request(key, priority, volume, nextSequence++);
+        waiting.put(key, request);
+        queue.add(request);
+        final Request added = request;
+        // Drop requests whose futures are cancelled by the caller right
+        // away so that they do not keep their volumes alive until a
+        // thread reaches them
+        request.future.whenComplete((mesh, error) -> {
+            if( added.future.isCancelled() ) {
+                discard(added);
+            }
+        });
+        notify();
+        return request.future;
+    }
+
+    /**
+     *  Changes the priority of the waiting request for the specified key.
+     *  Returns false if there is no waiting request for the key.
+     */
+    public synchronized boolean setPriority( K key, float priority ) {
+        Request request = waiting.get(key);
+        if( request == null ) {
+            return false;
+        }
+        queue.remove(request);
+        request.priority = priority;
+        queue.add(request);
+        return true;
+    }
+
+    /**
+     *  Cancels the waiting request for the specified key.  Returns false
+     *  if there is no waiting request for the key.
+     */
+    public boolean cancel( K key ) {
+        Request request;
+        synchronized( this ) {
+            // Removed under the lock so that a build thread cannot take
+            // it once it has been found
+            request = waiting.remove(key);
+            if( request == null ) {
+                return false;
+            }
+            queue.remove(request);
+        }
+        // Outside of the lock because cancelling runs the future's
+        // dependent actions
+        request.future.cancel(false);
+        return true;
+    }
+
+    /**
+     *  Returns the number of requests that are waiting to be built.
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     *  Stops the build threads once their current builds are done and
+     *  cancels all waiting requests.
+     */
+    public void shutdown() {
+        List<Request> cancelled;
+        synchronized( this ) {
+            if( shutdown ) {
+                return;
+            }
+            shutdown = true;
+            cancelled = new ArrayList<>(queue);
+            queue.clear();
+            waiting.clear();
+            notifyAll();
+        }
+        // Outside of the lock because cancelling runs the futures'
+        // dependent actions
+        for( Request request : cancelled ) {
+            request.future.cancel(false);
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    private synchronized void discard( Request request ) {
+        if( waiting.get(request.key) == request ) {
+            waiting.remove(request.key);
+            queue.remove(request);
+        }
+    }
+
+    private synchronized Request take() throws InterruptedException {
+        while( !shutdown ) {
+            Request request = queue.poll();
+            if( request == null ) {
+                wait();
+                continue;
+            }
+            if( waiting.get(request.key) == request ) {
+                waiting.remove(request.key);
+            }
+            if( !request.future.isDone() ) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void runBuilds() {
+        G generator = generators.get();
+        while( true ) {
+            Request request;
+            try {
+                request = take();
+            } catch( InterruptedException e ) {
+                return;
+            }
+            if( request == null ) {
+                return;
+            }
+            // A taken request is no longer waiting so submit() cannot
+            // change its volume anymore
+            DensityVolume volume = request.volume;
+            request.volume = null;
+            try {
+                request.future.complete(builder.apply(generator, volume));
+            } catch( RuntimeException | Error e ) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private class Request implements Comparable<Request> {
+        private final K key;
+        private final long sequence;
+        private final CompletableFuture<Mesh> future = new CompletableFuture<>();
+        private float priority;
+        private DensityVolume volume;
+
+        public Request( K key, float priority, DensityVolume volume, long sequence ) {
+            this.key = key;
+            this.priority = priority;
+            this.volume = volume;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo( Request other ) {
+            int result = Float.compare(priority, other.priority);
+            if( result != 0 ) {
+                return result;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.jayfella.mesh;
+
+/**
+ *  Receives the vertexes and triangles of generated geometry without any
+ *  jME Mesh or direct buffer being created, ie: for physics shapes, nav
+ *  meshes, server side collision or exporters.  MeshArrays is the sink
+ *  that collects the data for MeshArrays.createMesh().
+ *
+ *  <p>Vertexes are numbered in the order they are added, starting from
+ *  the vertex count of the sink when the generator started writing, and
+ *  triangles refer to them by those numbers.  A generator adds all of a
+ *  triangle's vertexes before the triangle.  Several meshes can be
+ *  written into one sink as long as the sink numbers vertexes from its
+ *  own current count, as MeshArrays does.</p>
+ */
+public interface MeshSink {
+
+    /**
+     *  Returns the number of vertexes added so far, which is the number
+     *  that the next added vertex gets.
+     */
+    public int getVertexCount();
+
+    /**
+     *  Adds a vertex with the specified position and normal and returns
+     *  its number.
+     */
+    public int addVertex( float x, float y, float z, float nx, float ny, float nz );
+
+    /**
+     *  Adds a triangle of the specified vertexes in counter-clockwise
+     *  order.
+     */
+    public void addTriangle( int a, int b, int c );
+
+    /**
+     *  Adds the first count vertexes of the specified packed x, y, z
+     *  position and normal arrays.  The default implementation adds them
+     *  one at a time.
+     */
+    public default void addVertexes( float[] positions, float[] normals, int count ) {
+        for( int i = 0; i < count * 3; i += 3 ) {
+            addVertex(positions[i], positions[i + 1], positions[i + 2],
+                      normals[i], normals[i + 1], normals[i + 2]);
+        }
+    }
+
+    /**
+     *  Adds the triangles of the first count indexes of the specified
+     *  array, offset by the specified base vertex.  The default
+     *  implementation adds them one at a time.
+     */
+    public default void addTriangles( int[] indexes, int count, int baseVertex ) {
+        for( int i = 0; i < count; i += 3 ) {
+            addTriangle(indexes[i] + baseVertex, indexes[i + 1] + baseVertex, indexes[i + 2] + baseVertex);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jayfella.mesh;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ *  A thread safe pool of reusable scratch contexts grouped by size class,
+ *  ie: chunk size.  A build acquires a context, uses it on one thread and
+ *  releases it again, so any number of threads can share one generator
+ *  while scratch arrays are only allocated for as many contexts as run
+ *  at the same time.
+ *
+ *  <p>At most maxRetained released contexts are kept per size class and
+ *  any beyond that are left to the garbage collector.</p>
+ */
+public class ScratchPool<C> {
+
+    private final Map<Long, ArrayDeque<C>> free = new HashMap<>();
+    private final int maxRetained;
+
+    /**
+     *  Creates a pool that keeps up to twice the number of available
+     *  processors of contexts per size class.
+     */
+    public ScratchPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public ScratchPool( int maxRetained ) {
+        if( maxRetained < 0 ) {
+            throw new IllegalArgumentException("Max retained cannot be negative:" + maxRetained);
+        }
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     *  Returns a size class for a three dimensional size where each
+     *  dimension is below 2^21.
+     */
+    public static long sizeClass( int x, int y, int z ) {
+        return ((long)x << 42) | ((long)y << 21) | z;
+    }
+
+    /**
+     *  Returns a released context of the specified size class or, if
+     *  there is none, a new one from the specified factory.
+     */
+    public C acquire( long sizeClass, Supplier<? extends C> factory ) {
+        synchronized( free ) {
+            ArrayDeque<C> contexts = free.get(sizeClass);
+            if( contexts != null && !contexts.isEmpty() ) {
+                return contexts.pop();
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     *  Returns the specified context to the pool.  The context must not
+     *  be used by the caller anymore.
+     */
+    public void release( long sizeClass, C context ) {
+        synchronized( free ) {
+            ArrayDeque<C> contexts = free.computeIfAbsent(sizeClass, k -> new ArrayDeque<>());
+            if( contexts.size() < maxRetained ) {
+                contexts.push(context);
+            }
+        }
+    }
+
+    /**
+     *  Drops all retained contexts.
+     */
+    public void clear() {
+        synchronized( free ) {
+            free.clear();
+        }
+    }
+}
@@ -22,7 +22,7 @@ import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.BufferUtils;
 
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.nio.Buffer;
 import java.util.List;
 import java.util.Vector;
 
@@ -35,6 +35,10 @@ import java.util.Vector;
  *
  * The algorithm ignores edges, making it very suitable for terrain decimation.
  *
+ * An instance holds the mesh it simplifies and the working vertex, triangle and reference lists for it, and nothing
+ * is shared between instances, so use one instance per mesh or per thread. The working lists are kept between
+ * calls to simplify() so a reused instance only allocates the per-vertex and per-triangle records.
+ *
  */
 public class SimplifyMesh {
 
@@ -788,11 +792,13 @@ public class SimplifyMesh {
         }
 
         // indexes
-        IntBuffer ib = BufferUtils.createIntBuffer(triangles.size() * 3);
+        Buffer indexData = MeshBuffers.createIndexBuffer(vertices.size(), triangles.size() * 3);
+        IndexBuffer ib = IndexBuffer.wrapIndexBuffer(indexData);
 
         for (Triangle t : triangles) {
             ib.put(t.v[0]).put(t.v[1]).put(t.v[2]);
         }
+        indexData.flip();
 
         // normals
         Vector3f[] normArray = complexNormals ? normalizeMesh(triangles, vertices) : new Vector3f[vertices.size()];
@@ -807,7 +813,7 @@ public class SimplifyMesh {
 
 
         mesh.setBuffer(VertexBuffer.Type.Position, 3, pb);
-        mesh.setBuffer(VertexBuffer.Type.Index, 3, ib);
+        MeshBuffers.setIndexBuffer(mesh, indexData);
 
         FloatBuffer nb = BufferUtils.createFloatBuffer(normArray);
         mesh.setBuffer(VertexBuffer.Type.Normal, 3, nb);
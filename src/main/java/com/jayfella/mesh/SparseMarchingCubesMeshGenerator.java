@@ -0,0 +1,558 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.marchingcubes.MarchingCubesConstants;
+import com.jayfella.mesh.marchingcubes.RangedDensityVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+
+/**
+ *  Takes a density field and generates Marching Cubes meshes for it by
+ *  walking an octree over the cells instead of sweeping every cell.  A
+ *  node is only subdivided when the density range of its corners spans
+ *  the surface, and Marching Cubes only runs in the leaves that are
+ *  reached, so the cost of a large region with a thin surface grows with
+ *  the area of the surface rather than with the volume of the region.
+ *
+ *  <p>The density ranges come from the volume when it is a
+ *  RangedDensityVolume.  Otherwise the generator first builds a min/max
+ *  pyramid over the volume's corners which is aligned with the octree
+ *  nodes.  That reads every corner once, but only the active leaves are
+ *  then meshed.</p>
+ *
+ *  <p>The volume layout and the output are the same as for
+ *  MarchingCubesMeshGenerator with Gradient normals, see
+ *  getRequiredVolumeSize(), although the vertexes and triangles come out
+ *  in a different order.  Leaves are visited in octree order so edge
+ *  vertexes are shared between leaves through a hash map keyed by edge.</p>
+ *
+ *  <p>As with MarchingCubesMeshGenerator, the scratch state of a build,
+ *  including the pyramid, is kept in a Context taken from a pool shared
+ *  by all generators of the same region size, so one generator can run
+ *  any number of builds at the same time as long as its settings are not
+ *  changed meanwhile.</p>
+ */
+public class SparseMarchingCubesMeshGenerator {
+
+    /**
+     *  The size of the leaf nodes in cells.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    // Leaf corners from -1 to LEAF_SIZE + 1 for the gradients
+    private static final int SAMPLE_ROW = LEAF_SIZE + 3;
+
+    /**
+     *  The scratch contexts shared by all generators, by region size.
+     */
+    private static final ScratchPool<Context> CONTEXTS = new ScratchPool<>();
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final long sizeClass;
+    private final int rootSize;
+
+    // The number of nodes along each axis per level, level 0 is the
+    // leaves
+    private final int[][] levelSizes;
+
+    private float xzScale = 1;
+    private float voxelSize = 1;
+    private VertexFormat vertexFormat = VertexFormat.Float;
+    private boolean interleaved;
+
+    /**
+     *  Creates a sparse Marching Cubes based mesh generator that will
+     *  generate regions of the specified size.
+     */
+    public SparseMarchingCubesMeshGenerator( int cx, int cy, int cz ) {
+        this(cx, cy, cz, 1);
+    }
+
+    /**
+     *  Creates a sparse Marching Cubes based mesh generator that will
+     *  generate regions of the specified size with an extra x, z scale
+     *  applied to the resulting mesh, the same as the
+     *  MarchingCubesMeshGenerator xzScale.
+     */
+    public SparseMarchingCubesMeshGenerator( int cx, int cy, int cz, float xzScale ) {
+        this.sizeX = cx;
+        this.sizeY = cy;
+        this.sizeZ = cz;
+        this.sizeClass = ScratchPool.sizeClass(cx, cy, cz);
+        this.xzScale = xzScale;
+
+        int root = LEAF_SIZE;
+        int levels = 1;
+        while( root < Math.max(cx, Math.max(cy, cz)) ) {
+            root *= 2;
+            levels++;
+        }
+        this.rootSize = root;
+        this.levelSizes = new int[levels][];
+        for( int level = 0, nodeSize = LEAF_SIZE; level < levels; level++, nodeSize *= 2 ) {
+            int[] counts = {
+                    (cx + nodeSize - 1) / nodeSize,
+                    (cy + nodeSize - 1) / nodeSize,
+                    (cz + nodeSize - 1) / nodeSize
+            };
+            levelSizes[level] = counts;
+        }
+    }
+
+    /**
+     *  Returns the size of the volume that buildMesh() requires, which is
+     *  the same as for a MarchingCubesMeshGenerator of the same size.
+     */
+    public int[] getRequiredVolumeSize() {
+        return new int[]{ sizeX + 3, sizeY + 3, sizeZ + 3 };
+    }
+
+    public Vector3f getGenerationSize() {
+        return new Vector3f(sizeX * xzScale * voxelSize, sizeY * voxelSize, sizeZ * xzScale * voxelSize);
+    }
+
+    public void setXzScale( float s ) {
+        this.xzScale = s;
+    }
+
+    public float getXzScale() {
+        return xzScale;
+    }
+
+    /**
+     *  Sets the size of one cell in the generated mesh, the same as
+     *  MarchingCubesMeshGenerator.setVoxelSize().  Defaults to 1.
+     */
+    public void setVoxelSize( float voxelSize ) {
+        if( voxelSize <= 0 ) {
+            throw new IllegalArgumentException("Voxel size must be positive:" + voxelSize);
+        }
+        this.voxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     *  Sets the format of the position and normal buffers of the meshes
+     *  returned by buildMesh(), the same as
+     *  MarchingCubesMeshGenerator.setVertexFormat().  Defaults to
+     *  VertexFormat.Float.
+     */
+    public void setVertexFormat( VertexFormat vertexFormat ) {
+        if( vertexFormat == null ) {
+            throw new IllegalArgumentException("Vertex format cannot be null");
+        }
+        this.vertexFormat = vertexFormat;
+    }
+
+    public VertexFormat getVertexFormat() {
+        return vertexFormat;
+    }
+
+    /**
+     *  Sets whether the meshes returned by buildMesh() store their vertex
+     *  attributes interleaved in a single buffer.  Defaults to false.
+     */
+    public void setInterleaved( boolean interleaved ) {
+        this.interleaved = interleaved;
+    }
+
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     *  Returns the scale that quantized positions are divided by, which
+     *  is the largest axis of the generation size, the same as
+     *  MarchingCubesMeshGenerator.getPositionScale().
+     */
+    public float getPositionScale() {
+        Vector3f size = getGenerationSize();
+        return Math.max(size.x, Math.max(size.y, size.z));
+    }
+
+    private static int solid( float value ) {
+        return value > 0 ? 1 : 0;
+    }
+
+    /**
+     *  Creates a new scratch context for the builds of this generator and
+     *  of any other generator of the same size, see
+     *  MarchingCubesMeshGenerator.createContext().
+     */
+    public Context createContext() {
+        return new Context(this);
+    }
+
+    private Context acquireContext() {
+        return CONTEXTS.acquire(sizeClass, this::createContext);
+    }
+
+    private void releaseContext( Context context ) {
+        CONTEXTS.release(sizeClass, context);
+    }
+
+    /**
+     *  Builds a mesh from the specified volume.  Returns null if the
+     *  volume produced no geometry.
+     */
+    public Mesh buildMesh( DensityVolume volume ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return null;
+            }
+            return context.arrays.createMesh(vertexFormat, getPositionScale(), interleaved);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the geometry for the specified volume and writes it to the
+     *  specified sink instead of creating a Mesh.  Returns false if the
+     *  volume produced no geometry, in which case nothing is written.
+     */
+    public boolean writeMesh( DensityVolume volume, MeshSink sink ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return false;
+            }
+            context.arrays.writeTo(sink);
+            return true;
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume directly into the
+     *  specified primitive arrays, replacing their current contents.
+     *  Returns false if the volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target ) {
+        Context context = acquireContext();
+        try {
+            return buildMesh(volume, target, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume into the specified
+     *  primitive arrays using the specified scratch context, which must
+     *  have been created by a generator of the same size and must not be
+     *  used by another build at the same time.  Returns false if the
+     *  volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target, Context context ) {
+        if( context.sizeClass != sizeClass ) {
+            throw new IllegalArgumentException("Context was created for a different region size");
+        }
+
+        target.clear();
+        context.edgeVertexes.clear();
+        context.activeLeafCount = 0;
+        RangedDensityVolume ranged = null;
+        if( volume instanceof RangedDensityVolume ) {
+            ranged = (RangedDensityVolume)volume;
+        } else {
+            buildPyramid(volume, context);
+        }
+
+        visit(volume, ranged, 0, 0, 0, rootSize, levelSizes.length - 1, context, target);
+
+        if( target.getIndexCount() == 0 ) {
+            target.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Builds the min/max pyramid over every corner of the volume.  The
+     *  leaves are filled by reading their corners, where the corners on
+     *  the faces between leaves are read by both, and every level above
+     *  is filled from the eight nodes below it.
+     */
+    private void buildPyramid( DensityVolume volume, Context context ) {
+        context.ensurePyramid();
+        float[][] levelMins = context.levelMins;
+        float[][] levelMaxs = context.levelMaxs;
+        float[] samples = context.samples;
+        int[] leaves = levelSizes[0];
+        float[] mins = levelMins[0];
+        float[] maxs = levelMaxs[0];
+        int leaf = 0;
+        for( int i = 0; i < leaves[0]; i++ ) {
+            int x0 = i * LEAF_SIZE;
+            int x1 = Math.min(x0 + LEAF_SIZE, sizeX);
+            for( int j = 0; j < leaves[1]; j++ ) {
+                int y0 = j * LEAF_SIZE;
+                int y1 = Math.min(y0 + LEAF_SIZE, sizeY);
+                for( int k = 0; k < leaves[2]; k++, leaf++ ) {
+                    int z0 = k * LEAF_SIZE;
+                    int z1 = Math.min(z0 + LEAF_SIZE, sizeZ);
+                    // The leaf's corners, shifted by the volume border
+                    int count = (x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+                    volume.sample(x0 + 1, y0 + 1, z0 + 1, x1 - x0 + 1, y1 - y0 + 1, z1 - z0 + 1,
+                                  samples, 0);
+                    float min = Float.POSITIVE_INFINITY;
+                    float max = Float.NEGATIVE_INFINITY;
+                    for( int c = 0; c < count; c++ ) {
+                        float d = samples[c];
+                        if( d < min ) {
+                            min = d;
+                        }
+                        if( d > max ) {
+                            max = d;
+                        }
+                    }
+                    mins[leaf] = min;
+                    maxs[leaf] = max;
+                }
+            }
+        }
+
+        for( int level = 1; level < levelSizes.length; level++ ) {
+            int[] counts = levelSizes[level];
+            int[] childCounts = levelSizes[level - 1];
+            float[] childMins = levelMins[level - 1];
+            float[] childMaxs = levelMaxs[level - 1];
+            mins = levelMins[level];
+            maxs = levelMaxs[level];
+            int index = 0;
+            for( int i = 0; i < counts[0]; i++ ) {
+                for( int j = 0; j < counts[1]; j++ ) {
+                    for( int k = 0; k < counts[2]; k++, index++ ) {
+                        float min = Float.POSITIVE_INFINITY;
+                        float max = Float.NEGATIVE_INFINITY;
+                        for( int ci = i * 2; ci < Math.min(i * 2 + 2, childCounts[0]); ci++ ) {
+                            for( int cj = j * 2; cj < Math.min(j * 2 + 2, childCounts[1]); cj++ ) {
+                                for( int ck = k * 2; ck < Math.min(k * 2 + 2, childCounts[2]); ck++ ) {
+                                    int child = (ci * childCounts[1] + cj) * childCounts[2] + ck;
+                                    min = Math.min(min, childMins[child]);
+                                    max = Math.max(max, childMaxs[child]);
+                                }
+                            }
+                        }
+                        mins[index] = min;
+                        maxs[index] = max;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Returns true if all of the corners of the specified node are on
+     *  the same side of the surface.
+     */
+    private boolean isHomogeneous( RangedDensityVolume ranged, int x, int y, int z, int size, int level,
+                                   Context context ) {
+        float min;
+        float max;
+        if( ranged != null ) {
+            // The node's corners, shifted by the volume border
+            float[] r = ranged.getDensityRange(x + 1, y + 1, z + 1,
+                                               Math.min(size, sizeX - x) + 1,
+                                               Math.min(size, sizeY - y) + 1,
+                                               Math.min(size, sizeZ - z) + 1, context.range);
+            min = r[0];
+            max = r[1];
+        } else {
+            int[] counts = levelSizes[level];
+            int node = ((x / size) * counts[1] + y / size) * counts[2] + z / size;
+            min = context.levelMins[level][node];
+            max = context.levelMaxs[level][node];
+        }
+        return min > 0 || max <= 0;
+    }
+
+    private void visit( DensityVolume volume, RangedDensityVolume ranged, int x, int y, int z,
+                        int size, int level, Context context, MeshArrays target ) {
+        if( x >= sizeX || y >= sizeY || z >= sizeZ ) {
+            return;
+        }
+        if( isHomogeneous(ranged, x, y, z, size, level, context) ) {
+            return;
+        }
+        if( level == 0 ) {
+            context.activeLeafCount++;
+            extractLeaf(volume, x, y, z, context, target);
+            return;
+        }
+        int half = size / 2;
+        for( int i = 0; i < 8; i++ ) {
+            visit(volume, ranged, x + (i >> 2) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half,
+                  half, level - 1, context, target);
+        }
+    }
+
+    /**
+     *  Runs Marching Cubes over the cells of the leaf at the specified
+     *  cell.  The leaf's corners and one more corner on each side, for
+     *  the gradients, are read into the samples first with one sample()
+     *  call, x fastest, so the rows are nx + 3 long.
+     */
+    private void extractLeaf( DensityVolume volume, int x0, int y0, int z0, Context context,
+                              MeshArrays target ) {
+        float[] samples = context.samples;
+        int[] cellVertexes = context.cellVertexes;
+        int nx = Math.min(LEAF_SIZE, sizeX - x0);
+        int ny = Math.min(LEAF_SIZE, sizeY - y0);
+        int nz = Math.min(LEAF_SIZE, sizeZ - z0);
+
+        // Sample i is corner x0 - 1 + i, which is volume corner x0 + i
+        volume.sample(x0, y0, z0, nx + 3, ny + 3, nz + 3, samples, 0);
+
+        int[] slots = MarchingCubesConstants.edgeSlots;
+        int[] caseEdges = MarchingCubesConstants.caseEdges;
+        int dy = nx + 3;
+        int dz = dy * (ny + 3);
+        for( int i = 0; i < nx; i++ ) {
+            for( int j = 0; j < ny; j++ ) {
+                for( int k = 0; k < nz; k++ ) {
+                    int c = (k + 1) * dz + (j + 1) * dy + i + 1;
+                    int bits = solid(samples[c]);
+                    bits |= solid(samples[c + dy]) << 1;
+                    bits |= solid(samples[c + 1 + dy]) << 2;
+                    bits |= solid(samples[c + 1]) << 3;
+                    bits |= solid(samples[c + dz]) << 4;
+                    bits |= solid(samples[c + dy + dz]) << 5;
+                    bits |= solid(samples[c + 1 + dy + dz]) << 6;
+                    bits |= solid(samples[c + 1 + dz]) << 7;
+
+                    int count = MarchingCubesConstants.caseCounts[bits];
+                    if( count == 0 ) {
+                        continue;
+                    }
+                    int edgeHit = MarchingCubesConstants.caseEdgeMasks[bits];
+                    for( int e = 0; e < 12; e++ ) {
+                        if( (edgeHit & (1 << e)) != 0 ) {
+                            int s = e * 4;
+                            cellVertexes[e] = edgeVertex(x0 + i + slots[s], y0 + j + slots[s + 1],
+                                                         z0 + k + slots[s + 2], slots[s + 3],
+                                                         c + slots[s] + slots[s + 1] * dy + slots[s + 2] * dz,
+                                                         dy, dz, context, target);
+                        }
+                    }
+                    for( int t = MarchingCubesConstants.caseOffsets[bits], end = t + count; t < end; t++ ) {
+                        target.addIndex(cellVertexes[caseEdges[t]]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Returns the vertex of the edge that starts at the specified corner
+     *  and goes along the specified axis, creating it if no leaf has
+     *  created it yet.  s is the sample index of the start corner and dy
+     *  and dz are the sample steps along y and z.
+     */
+    private int edgeVertex( int x, int y, int z, int axis, int s, int dy, int dz, Context context,
+                            MeshArrays target ) {
+        long key = (((long)x * (sizeY + 1) + y) * (sizeZ + 1) + z) * 3 + axis;
+        int vertex = context.edgeVertexes.get(key);
+        if( vertex >= 0 ) {
+            return vertex;
+        }
+
+        float[] samples = context.samples;
+        int step = axis == 0 ? 1 : axis == 1 ? dy : dz;
+        float d1 = samples[s];
+        float d2 = samples[s + step];
+        float part = Math.abs(d1) / Math.abs(d2 - d1);
+
+        // The central difference gradients at both ends, interpolated
+        // and positioned exactly like MarchingCubesMeshGenerator's
+        // Gradient normals so that both produce the same vertexes
+        int e = s + step;
+        Vector3f norm = context.tempNormal.set(samples[s - 1] - samples[s + 1],
+                                               samples[s - dy] - samples[s + dy],
+                                               samples[s - dz] - samples[s + dz]);
+        Vector3f n2 = context.tempNormal2.set(samples[e - 1] - samples[e + 1],
+                                              samples[e - dy] - samples[e + dy],
+                                              samples[e - dz] - samples[e + dz]);
+        norm.interpolateLocal(n2, part);
+        norm.normalizeLocal();
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+
+        float vx = x + 1;
+        float vy = y + 1;
+        float vz = z + 1;
+        if( axis == 0 ) {
+            vx += part;
+        } else if( axis == 1 ) {
+            vy += part;
+        } else {
+            vz += part;
+        }
+        vertex = target.addVertex((vx - 1) * xzScale * voxelSize, (vy - 1) * voxelSize,
+                                  (vz - 1) * xzScale * voxelSize,
+                                  norm.x, norm.y, norm.z);
+        context.edgeVertexes.put(key, vertex);
+        return vertex;
+    }
+
+    /**
+     *  The scratch state of one build: the leaf samples, the edge vertex
+     *  map, the min/max pyramid and the staging arrays.  A context can be
+     *  used by any generator of the same region size but only by one
+     *  build at a time.
+     */
+    public static final class Context {
+        private final long sizeClass;
+        private final int[][] levelSizes;
+
+        // Min/max pyramid for volumes that are not ranged.  Each node
+        // covers its cells' corners including the far corners that it
+        // shares with the next node.  Created on first use.
+        private float[][] levelMins;
+        private float[][] levelMaxs;
+
+        private final float[] samples = new float[SAMPLE_ROW * SAMPLE_ROW * SAMPLE_ROW];
+        private final int[] cellVertexes = new int[12];
+        private final float[] range = new float[2];
+        private final Vector3f tempNormal = new Vector3f();
+        private final Vector3f tempNormal2 = new Vector3f();
+        private final LongIntHashMap edgeVertexes = new LongIntHashMap(1024);
+        private final MeshArrays arrays = new MeshArrays();
+        private int activeLeafCount;
+
+        private Context( SparseMarchingCubesMeshGenerator generator ) {
+            this.sizeClass = generator.sizeClass;
+            this.levelSizes = generator.levelSizes;
+        }
+
+        /**
+         *  Returns the number of leaves that were meshed by the last
+         *  build that used this context.
+         */
+        public int getActiveLeafCount() {
+            return activeLeafCount;
+        }
+
+        private void ensurePyramid() {
+            if( levelMins == null ) {
+                levelMins = new float[levelSizes.length][];
+                levelMaxs = new float[levelSizes.length][];
+                for( int level = 0; level < levelSizes.length; level++ ) {
+                    int[] counts = levelSizes[level];
+                    levelMins[level] = new float[counts[0] * counts[1] * counts[2]];
+                    levelMaxs[level] = new float[counts[0] * counts[1] * counts[2]];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.marchingcubes.RangedDensityVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+
+/**
+ *  Takes a density field and generates meshes for it using naive
+ *  Surface Nets.  Every cell that the surface passes through gets one
+ *  vertex at the average of its edge crossings and every edge that the
+ *  surface crosses gets a quad joining the vertexes of the four cells
+ *  around it.  There is no case table and the triangles are more evenly
+ *  shaped than Marching Cubes' triangles, without the thin slivers.
+ *
+ *  <p>The volume layout is the same as for MarchingCubesMeshGenerator,
+ *  see getRequiredVolumeSize(), so the two generators can be swapped per
+ *  chunk.  Each chunk emits the quads for the edges that start at its own
+ *  corners and so also creates the vertexes of the cells one step before
+ *  it, which are the same as the last cells of the chunk before.  The
+ *  surfaces of neighbouring chunks therefore join without gaps.</p>
+ *
+ *  <p>The volume is swept one x plane at a time and only two planes of
+ *  densities and cell vertexes are kept.  Normals are the gradient of
+ *  the trilinear interpolation of each cell's corners at its vertex.</p>
+ *
+ *  <p>As with MarchingCubesMeshGenerator, the scratch state of a build is
+ *  kept in a Context taken from a pool shared by all generators of the
+ *  same chunk size, so one generator can run any number of builds at the
+ *  same time as long as its settings are not changed meanwhile.</p>
+ */
+public class SurfaceNetsMeshGenerator {
+
+    /**
+     *  Corner pairs for the 12 edges of a cell, where corner i is
+     *  offset by (i & 1, (i >> 1) & 1, (i >> 2) & 1).
+     */
+    private static final int[][] EDGES = {
+            {0, 1}, {2, 3}, {4, 5}, {6, 7},
+            {0, 2}, {1, 3}, {4, 6}, {5, 7},
+            {0, 4}, {1, 5}, {2, 6}, {3, 7}
+    };
+
+    /**
+     *  The scratch contexts shared by all generators, by chunk size.
+     */
+    private static final ScratchPool<Context> CONTEXTS = new ScratchPool<>();
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final long sizeClass;
+
+    // Corners from -1 to size on y and z
+    private final int cornerRow;
+
+    // Cells from -1 to size - 1 on y and z
+    private final int cellRow;
+
+    private float xzScale = 1;
+    private float voxelSize = 1;
+
+    /**
+     *  Creates a Surface Nets based mesh generator that will
+     *  generate chunks of the specified size.
+     */
+    public SurfaceNetsMeshGenerator( int cx, int cy, int cz ) {
+        this(cx, cy, cz, 1);
+    }
+
+    /**
+     *  Creates a Surface Nets based mesh generator that will generate
+     *  chunks of the specified size with an extra x, z scale applied to
+     *  the resulting mesh, the same as the MarchingCubesMeshGenerator
+     *  xzScale.
+     */
+    public SurfaceNetsMeshGenerator( int cx, int cy, int cz, float xzScale ) {
+        this.sizeX = cx;
+        this.sizeY = cy;
+        this.sizeZ = cz;
+        this.sizeClass = ScratchPool.sizeClass(cx, cy, cz);
+        this.xzScale = xzScale;
+        this.cornerRow = cy + 2;
+        this.cellRow = cy + 1;
+    }
+
+    /**
+     *  Returns the size of the volume that buildMesh() requires, which is
+     *  the same as for a MarchingCubesMeshGenerator of the same size.  The
+     *  last border corner is not used by Surface Nets.
+     */
+    public int[] getRequiredVolumeSize() {
+        return new int[]{ sizeX + 3, sizeY + 3, sizeZ + 3 };
+    }
+
+    public Vector3f getGenerationSize() {
+        return new Vector3f(sizeX * xzScale * voxelSize, sizeY * voxelSize, sizeZ * xzScale * voxelSize);
+    }
+
+    public void setXzScale( float s ) {
+        this.xzScale = s;
+    }
+
+    public float getXzScale() {
+        return xzScale;
+    }
+
+    /**
+     *  Sets the size of one cell in the generated mesh, the same as
+     *  MarchingCubesMeshGenerator.setVoxelSize().  Defaults to 1.
+     */
+    public void setVoxelSize( float voxelSize ) {
+        if( voxelSize <= 0 ) {
+            throw new IllegalArgumentException("Voxel size must be positive:" + voxelSize);
+        }
+        this.voxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    private static boolean solid( float value ) {
+        return value > 0;
+    }
+
+    /**
+     *  Creates a new scratch context for the builds of this generator and
+     *  of any other generator of the same size, see
+     *  MarchingCubesMeshGenerator.createContext().
+     */
+    public Context createContext() {
+        return new Context(this);
+    }
+
+    private Context acquireContext() {
+        return CONTEXTS.acquire(sizeClass, this::createContext);
+    }
+
+    private void releaseContext( Context context ) {
+        CONTEXTS.release(sizeClass, context);
+    }
+
+    /**
+     *  Builds a mesh from the specified volume.  Returns null if the
+     *  volume produced no geometry.
+     */
+    public Mesh buildMesh( DensityVolume volume ) {
+        Context context = acquireContext();
+        try {
+            if( !buildMesh(volume, context.arrays, context) ) {
+                return null;
+            }
+            return context.arrays.createMesh();
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume directly into the
+     *  specified primitive arrays, replacing their current contents.
+     *  Returns false if the volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target ) {
+        Context context = acquireContext();
+        try {
+            return buildMesh(volume, target, context);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     *  Builds the mesh data for the specified volume into the specified
+     *  primitive arrays using the specified scratch context, which must
+     *  have been created by a generator of the same size and must not be
+     *  used by another build at the same time.  Returns false if the
+     *  volume produced no geometry.
+     */
+    public boolean buildMesh( DensityVolume volume, MeshArrays target, Context context ) {
+        if( context.sizeClass != sizeClass ) {
+            throw new IllegalArgumentException("Context was created for a different chunk size");
+        }
+
+        target.clear();
+        if( volume instanceof RangedDensityVolume ) {
+            // All of the corners that the cells use
+            float[] r = ((RangedDensityVolume)volume).getDensityRange(0, 0, 0, sizeX + 2, sizeY + 2,
+                                                                      sizeZ + 2, context.range);
+            if( r[0] > 0 || r[1] <= 0 ) {
+                return false;
+            }
+        }
+
+        float[][] densities = context.densities;
+        int[][] vertexes = context.vertexes;
+        samplePlane(volume, -1, densities[0]);
+        for( int x = -1; x < sizeX; x++ ) {
+            float[] near = densities[(x + 1) & 1];
+            float[] far = densities[x & 1];
+            samplePlane(volume, x + 1, far);
+
+            int[] cells = vertexes[(x + 1) & 1];
+            buildCells(x, near, far, cells, context, target);
+            if( x >= 0 ) {
+                emitQuads(near, far, vertexes[x & 1], cells, target);
+            }
+        }
+
+        if( target.getIndexCount() == 0 ) {
+            target.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Samples the corners of the specified x plane, from -1 to size on
+     *  y and z, stored at (z + 1) * cornerRow + y + 1.
+     */
+    private void samplePlane( DensityVolume volume, int x, float[] plane ) {
+        volume.sample(x + 1, 0, 0, 1, sizeY + 2, sizeZ + 2, plane, 0);
+    }
+
+    /**
+     *  Creates the vertexes of the cells in the specified x plane of
+     *  cells, from -1 to size - 1 on y and z, between the near and far
+     *  planes of corners.  Cells that the surface does not pass through
+     *  get -1.
+     */
+    private void buildCells( int x, float[] near, float[] far, int[] cells, Context context,
+                             MeshArrays target ) {
+        float[] d = context.corners;
+        int index = 0;
+        for( int z = -1; z < sizeZ; z++ ) {
+            for( int y = -1; y < sizeY; y++, index++ ) {
+                int c0 = (z + 1) * cornerRow + y + 1;
+                int c1 = c0 + cornerRow;
+                d[0] = near[c0];
+                d[1] = far[c0];
+                d[2] = near[c0 + 1];
+                d[3] = far[c0 + 1];
+                d[4] = near[c1];
+                d[5] = far[c1];
+                d[6] = near[c1 + 1];
+                d[7] = far[c1 + 1];
+
+                int solidCount = 0;
+                for( int i = 0; i < 8; i++ ) {
+                    if( solid(d[i]) ) {
+                        solidCount++;
+                    }
+                }
+                if( solidCount == 0 || solidCount == 8 ) {
+                    cells[index] = -1;
+                    continue;
+                }
+                cells[index] = addCellVertex(x, y, z, d, context.tempNormal, target);
+            }
+        }
+    }
+
+    /**
+     *  Adds the vertex for the cell at the specified corner with the
+     *  specified corner densities at the average of its edge crossings.
+     */
+    private int addCellVertex( int x, int y, int z, float[] d, Vector3f tempNormal, MeshArrays target ) {
+        float px = 0;
+        float py = 0;
+        float pz = 0;
+        int count = 0;
+        for( int[] edge : EDGES ) {
+            float d1 = d[edge[0]];
+            float d2 = d[edge[1]];
+            if( solid(d1) == solid(d2) ) {
+                continue;
+            }
+            float part = Math.abs(d1) / Math.abs(d2 - d1);
+            int a = edge[0];
+            int b = edge[1];
+            px += (a & 1) + ((b & 1) - (a & 1)) * part;
+            py += ((a >> 1) & 1) + (((b >> 1) & 1) - ((a >> 1) & 1)) * part;
+            pz += ((a >> 2) & 1) + (((b >> 2) & 1) - ((a >> 2) & 1)) * part;
+            count++;
+        }
+        px /= count;
+        py /= count;
+        pz /= count;
+
+        // The gradient of the trilinear interpolation at the vertex
+        float gx = lerp(lerp(d[1] - d[0], d[3] - d[2], py), lerp(d[5] - d[4], d[7] - d[6], py), pz);
+        float gy = lerp(lerp(d[2] - d[0], d[3] - d[1], px), lerp(d[6] - d[4], d[7] - d[5], px), pz);
+        float gz = lerp(lerp(d[4] - d[0], d[5] - d[1], px), lerp(d[6] - d[2], d[7] - d[3], px), py);
+        Vector3f norm = tempNormal.set(-gx, -gy, -gz);
+        norm.normalizeLocal();
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+
+        return target.addVertex((x + px) * xzScale * voxelSize, (y + py) * voxelSize,
+                                (z + pz) * xzScale * voxelSize, norm.x, norm.y, norm.z);
+    }
+
+    private static float lerp( float a, float b, float t ) {
+        return a + (b - a) * t;
+    }
+
+    /**
+     *  Emits a quad for every crossed edge that starts at a corner of
+     *  the near plane of corners.  The x edges join the cells of the
+     *  current plane of cells and the y and z edges join the cells of
+     *  the current and previous planes.
+     */
+    private void emitQuads( float[] near, float[] far, int[] prev, int[] cells, MeshArrays target ) {
+        for( int z = 0; z < sizeZ; z++ ) {
+            for( int y = 0; y < sizeY; y++ ) {
+                int c = (z + 1) * cornerRow + y + 1;
+                int cell = (z + 1) * cellRow + y + 1;
+                boolean inside = solid(near[c]);
+
+                if( inside != solid(far[c]) ) {
+                    addQuad(cells[cell - cellRow - 1], cells[cell - cellRow],
+                            cells[cell], cells[cell - 1], inside, target);
+                }
+                if( inside != solid(near[c + 1]) ) {
+                    addQuad(prev[cell - cellRow], prev[cell],
+                            cells[cell], cells[cell - cellRow], inside, target);
+                }
+                if( inside != solid(near[c + cornerRow]) ) {
+                    addQuad(prev[cell - 1], cells[cell - 1],
+                            cells[cell], prev[cell], inside, target);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Adds the quad for the specified cells, which wind counter-clockwise
+     *  around the edge's direction, so that it faces away from the solid
+     *  end of the edge.
+     */
+    private void addQuad( int a, int b, int c, int d, boolean startSolid, MeshArrays target ) {
+        if( !startSolid ) {
+            target.addTriangle(a, c, b);
+            target.addTriangle(a, d, c);
+        } else {
+            target.addTriangle(a, b, c);
+            target.addTriangle(a, c, d);
+        }
+    }
+
+    /**
+     *  The scratch state of one build: two planes of corner densities and
+     *  cell vertexes and the staging arrays.  A context can be used by any
+     *  generator of the same chunk size but only by one build at a time.
+     */
+    public static final class Context {
+        private final long sizeClass;
+        private final float[][] densities;
+        private final int[][] vertexes;
+        private final float[] corners = new float[8];
+        private final float[] range = new float[2];
+        private final Vector3f tempNormal = new Vector3f();
+        private final MeshArrays arrays = new MeshArrays();
+
+        private Context( SurfaceNetsMeshGenerator generator ) {
+            this.sizeClass = generator.sizeClass;
+            this.densities = new float[2][generator.cornerRow * (generator.sizeZ + 2)];
+            this.vertexes = new int[2][generator.cellRow * (generator.sizeZ + 1)];
+        }
+    }
+}
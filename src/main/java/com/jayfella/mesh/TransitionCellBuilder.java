@@ -0,0 +1,514 @@
+package com.jayfella.mesh;
+
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.marchingcubes.MarchingCubesConstants;
+import com.jme3.math.Vector3f;
+
+import java.util.Arrays;
+
+/**
+ *  Builds the transition cells for the faces of a marching cubes chunk
+ *  that border a neighbour with twice the voxel size.
+ *
+ *  <p>Each transition cell covers one face square of the coarse neighbour,
+ *  which is 2x2 of this chunk's face squares.  Where the surface of this
+ *  chunk meets the face it follows the fine contour of its own cells and
+ *  where the coarse neighbour's surface meets the face it follows the
+ *  contour of the coarse cell.  The transition cell joins the two contours
+ *  into closed loops, using the face segment tables derived from the
+ *  regular cell table, and triangulates them.  The transition cells have
+ *  no width so neither chunk's regular cells have to be displaced, the
+ *  triangles lie in the face and exactly fill the crack between the two
+ *  surfaces.</p>
+ *
+ *  <p>The coarse cells are sampled from the second border corner of the
+ *  volume, so the chunk has to be built with a border of 2.</p>
+ */
+class TransitionCellBuilder {
+
+    private static final int COARSE_BIT = 1 << 30;
+    private static final int V_DIR_BIT = 1 << 29;
+    private static final int COORD_SHIFT = 14;
+    private static final int COORD_MASK = (1 << COORD_SHIFT) - 1;
+    private static final float EPSILON = 1e-6f;
+
+    /**
+     *  The most loop nodes a transition cell can have: 8 fine half edges
+     *  and 4 fine interior edges plus 4 coarse edges.
+     */
+    private static final int MAX_NODES = 16;
+
+    private final int[] size;
+    private final int border;
+
+    // Per build state
+    private DensityVolume volume;
+    private MeshArrays target;
+    private float xzScale;
+    private float voxelSize;
+    private boolean gradients;
+
+    // Per face state
+    private int axis;
+    private int uAxis;
+    private int vAxis;
+    private int plane;
+    private int outward;
+    private int nu;
+    private int nv;
+    private int rowSize;
+    private final float[][] layers = new float[4][];
+    private int[] fineVerts = new int[0];
+    private int[] coarseVerts = new int[0];
+
+    // Per transition cell state
+    private final int[] keys = new int[MAX_NODES];
+    private final int[] next = new int[MAX_NODES];
+    private final boolean[] hasIn = new boolean[MAX_NODES];
+    private final boolean[] visited = new boolean[MAX_NODES];
+    private final float[] nodeU = new float[MAX_NODES];
+    private final float[] nodeV = new float[MAX_NODES];
+    private final int[] loop = new int[MAX_NODES];
+    private int nodeCount;
+    private int sideFrom;
+    private int sideTo;
+
+    private final int[] corner = new int[3];
+    private final float[] point = new float[3];
+    private final Vector3f tempNormal = new Vector3f();
+    private final Vector3f tempNormal2 = new Vector3f();
+
+    /**
+     *  Creates a builder for chunks with the specified number of cells
+     *  along x, y and z and the specified volume border.
+     */
+    public TransitionCellBuilder( int sizeX, int sizeY, int sizeZ, int border ) {
+        this.size = new int[] { sizeX, sizeY, sizeZ };
+        this.border = border;
+    }
+
+    /**
+     *  Adds the transition cells for the specified face, numbered
+     *  axis * 2 + side as in MarchingCubesConstants.faceSegments, to
+     *  the target arrays.
+     */
+    public void build( DensityVolume volume, int face, float xzScale, float voxelSize,
+                       boolean gradients, MeshArrays target ) {
+        this.volume = volume;
+        this.target = target;
+        this.xzScale = xzScale;
+        this.voxelSize = voxelSize;
+        this.gradients = gradients;
+        try {
+            setupFace(face);
+            for( int v = 0; v < nv; v += 2 ) {
+                for( int u = 0; u < nu; u += 2 ) {
+                    buildCell(u, v);
+                }
+            }
+        } finally {
+            this.volume = null;
+            this.target = null;
+        }
+    }
+
+    private void setupFace( int face ) {
+        axis = face >> 1;
+        uAxis = axis == 0 ? 1 : 0;
+        vAxis = axis == 2 ? 1 : 2;
+        outward = (face & 1) == 0 ? -1 : 1;
+        plane = outward < 0 ? 0 : size[axis];
+        nu = size[uAxis];
+        nv = size[vAxis];
+
+        // Sample the face and its neighbouring layers, from the coarse
+        // cells' far corners two steps out to the fine cells' inner
+        // corners one step in, with an extra ring for the gradients.
+        rowSize = nu + 3;
+        int layerSize = rowSize * (nv + 3);
+        for( int depth = -2; depth <= 1; depth++ ) {
+            float[] layer = layers[depth + 2];
+            if( layer == null || layer.length < layerSize ) {
+                layer = layers[depth + 2] = new float[layerSize];
+            }
+            int index = 0;
+            for( int v = -1; v <= nv + 1; v++ ) {
+                for( int u = -1; u <= nu + 1; u++ ) {
+                    toCorner(plane - outward * depth, u, v);
+                    layer[index++] = volume.getDensity(corner[0] + border, corner[1] + border,
+                                                       corner[2] + border);
+                }
+            }
+        }
+
+        int fineSize = 2 * (nu + 1) * (nv + 1);
+        if( fineVerts.length < fineSize ) {
+            fineVerts = new int[fineSize];
+        }
+        Arrays.fill(fineVerts, 0, fineSize, -1);
+
+        int coarseSize = 2 * (nu / 2 + 1) * (nv / 2 + 1);
+        if( coarseVerts.length < coarseSize ) {
+            coarseVerts = new int[coarseSize];
+        }
+        Arrays.fill(coarseVerts, 0, coarseSize, -1);
+    }
+
+    private void toCorner( int a, int u, int v ) {
+        corner[axis] = a;
+        corner[uAxis] = u;
+        corner[vAxis] = v;
+    }
+
+    /**
+     *  Returns the sampled density at the specified chunk corner which
+     *  must be within the sampled layers.
+     */
+    private float density( int x, int y, int z ) {
+        int a = axis == 0 ? x : axis == 1 ? y : z;
+        int u = uAxis == 0 ? x : y;
+        int v = vAxis == 1 ? y : z;
+        int depth = (plane - a) * outward;
+        return layers[depth + 2][(v + 1) * rowSize + u + 1];
+    }
+
+    private float faceDensity( int u, int v ) {
+        return layers[2][(v + 1) * rowSize + u + 1];
+    }
+
+    private int cellMask( int x, int y, int z, int s ) {
+        int bits = 0;
+        bits |= solid(density(x    , y    , z    ));
+        bits |= solid(density(x    , y + s, z    )) << 1;
+        bits |= solid(density(x + s, y + s, z    )) << 2;
+        bits |= solid(density(x + s, y    , z    )) << 3;
+        bits |= solid(density(x    , y    , z + s)) << 4;
+        bits |= solid(density(x    , y + s, z + s)) << 5;
+        bits |= solid(density(x + s, y + s, z + s)) << 6;
+        bits |= solid(density(x + s, y    , z + s)) << 7;
+        return bits;
+    }
+
+    private static int solid( float value ) {
+        return value > 0 ? 1 : 0;
+    }
+
+    /**
+     *  Builds the transition cell for the coarse face square whose
+     *  lower fine corner is (u, v).
+     */
+    private void buildCell( int u, int v ) {
+        nodeCount = 0;
+
+        // The fine cells inside this chunk, traversed against the
+        // direction of their triangles so that the transition triangles
+        // continue the same winding.
+        int fineA = outward < 0 ? 0 : plane - 1;
+        int fineFace = axis * 2 + (outward < 0 ? 0 : 1);
+        for( int j = 0; j < 2; j++ ) {
+            for( int i = 0; i < 2; i++ ) {
+                toCorner(fineA, u + i, v + j);
+                if( !addSegments(corner[0], corner[1], corner[2], 1, fineFace) ) {
+                    return;
+                }
+            }
+        }
+
+        // The coarse neighbour's cell outside of this chunk
+        int coarseA = outward < 0 ? -2 : plane;
+        int coarseFace = axis * 2 + (outward < 0 ? 1 : 0);
+        toCorner(coarseA, u, v);
+        if( !addSegments(corner[0], corner[1], corner[2], 2, coarseFace) ) {
+            return;
+        }
+        if( nodeCount == 0 ) {
+            return;
+        }
+
+        // Along each side of the transition cell the fine and coarse
+        // crossings have to be connected.
+        int cu = u / 2;
+        int cv = v / 2;
+        linkSide(fineKey(false, u, v), fineKey(false, u + 1, v), coarseKey(false, cu, cv));
+        linkSide(fineKey(false, u, v + 2), fineKey(false, u + 1, v + 2), coarseKey(false, cu, cv + 1));
+        linkSide(fineKey(true, u, v), fineKey(true, u, v + 1), coarseKey(true, cu, cv));
+        linkSide(fineKey(true, u + 2, v), fineKey(true, u + 2, v + 1), coarseKey(true, cu + 1, cv));
+
+        for( int i = 0; i < nodeCount; i++ ) {
+            if( next[i] < 0 || !hasIn[i] ) {
+                // Should not happen with a consistent case table
+                return;
+            }
+            setNodePoint(i);
+            visited[i] = false;
+        }
+
+        for( int i = 0; i < nodeCount; i++ ) {
+            if( visited[i] ) {
+                continue;
+            }
+            int count = 0;
+            int n = i;
+            do {
+                visited[n] = true;
+                loop[count++] = n;
+                n = next[n];
+            } while( n != i && !visited[n] );
+            if( n == i ) {
+                triangulate(count);
+            }
+        }
+    }
+
+    /**
+     *  Adds the face segments of the cell with the specified lower
+     *  corner and size as reversed links between loop nodes.
+     */
+    private boolean addSegments( int x, int y, int z, int s, int face ) {
+        int[] segments = MarchingCubesConstants.faceSegments[cellMask(x, y, z, s)][face];
+        for( int i = 0; i < segments.length; i += 2 ) {
+            int from = node(edgeKey(x, y, z, s, segments[i + 1]));
+            int to = node(edgeKey(x, y, z, s, segments[i]));
+            if( from < 0 || to < 0 || next[from] >= 0 || hasIn[to] ) {
+                return false;
+            }
+            next[from] = to;
+            hasIn[to] = true;
+        }
+        return true;
+    }
+
+    private int node( int key ) {
+        for( int i = 0; i < nodeCount; i++ ) {
+            if( keys[i] == key ) {
+                return i;
+            }
+        }
+        if( nodeCount == MAX_NODES ) {
+            return -1;
+        }
+        keys[nodeCount] = key;
+        next[nodeCount] = -1;
+        hasIn[nodeCount] = false;
+        return nodeCount++;
+    }
+
+    private int findNode( int key ) {
+        for( int i = 0; i < nodeCount; i++ ) {
+            if( keys[i] == key ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Connects the crossing that has no outgoing link to the crossing
+     *  that has no incoming link among the two fine half edges and the
+     *  coarse edge that make up one side of a transition cell.
+     */
+    private void linkSide( int fine1, int fine2, int coarse ) {
+        sideFrom = -1;
+        sideTo = -1;
+        checkSideNode(fine1);
+        checkSideNode(fine2);
+        checkSideNode(coarse);
+        if( sideFrom >= 0 && sideTo >= 0 && sideFrom != sideTo ) {
+            next[sideFrom] = sideTo;
+            hasIn[sideTo] = true;
+        }
+    }
+
+    private void checkSideNode( int key ) {
+        int n = findNode(key);
+        if( n < 0 ) {
+            return;
+        }
+        if( next[n] < 0 ) {
+            sideFrom = n;
+        }
+        if( !hasIn[n] ) {
+            sideTo = n;
+        }
+    }
+
+    private int edgeKey( int x, int y, int z, int s, int edge ) {
+        int[] start = MarchingCubesConstants.edgeStarts[edge];
+        int[] dir = MarchingCubesConstants.edgeDirs[edge];
+        int u = (uAxis == 0 ? x : y) + start[uAxis] * s;
+        int v = (vAxis == 1 ? y : z) + start[vAxis] * s;
+        boolean vDir = dir[vAxis] != 0;
+        if( s == 1 ) {
+            return fineKey(vDir, u, v);
+        }
+        return coarseKey(vDir, u / 2, v / 2);
+    }
+
+    private static int fineKey( boolean vDir, int u, int v ) {
+        return (vDir ? V_DIR_BIT : 0) | (u << COORD_SHIFT) | v;
+    }
+
+    private static int coarseKey( boolean vDir, int u, int v ) {
+        return COARSE_BIT | fineKey(vDir, u, v);
+    }
+
+    /**
+     *  Calculates the face position of the crossing for the specified
+     *  node from the face densities in the same way the regular cells do.
+     */
+    private void setNodePoint( int n ) {
+        int key = keys[n];
+        int length = (key & COARSE_BIT) != 0 ? 2 : 1;
+        boolean vDir = (key & V_DIR_BIT) != 0;
+        int u = ((key >> COORD_SHIFT) & COORD_MASK) * length;
+        int v = (key & COORD_MASK) * length;
+        float d1 = faceDensity(u, v);
+        float d2 = vDir ? faceDensity(u, v + length) : faceDensity(u + length, v);
+        float part = Math.abs(d1) / Math.abs(d2 - d1);
+        if( vDir ) {
+            nodeU[n] = u;
+            nodeV[n] = v + length * part;
+        } else {
+            nodeU[n] = u + length * part;
+            nodeV[n] = v;
+        }
+    }
+
+    /**
+     *  Returns the vertex index for the specified node, adding the
+     *  vertex the first time it is used on this face.  Fine vertexes
+     *  duplicate the chunk's own face vertexes exactly.
+     */
+    private int vertex( int n ) {
+        int key = keys[n];
+        boolean coarse = (key & COARSE_BIT) != 0;
+        boolean vDir = (key & V_DIR_BIT) != 0;
+        int cu = (key >> COORD_SHIFT) & COORD_MASK;
+        int cv = key & COORD_MASK;
+        int index;
+        if( coarse ) {
+            index = ((vDir ? 1 : 0) * (nv / 2 + 1) + cv) * (nu / 2 + 1) + cu;
+            if( coarseVerts[index] >= 0 ) {
+                return coarseVerts[index];
+            }
+        } else {
+            index = ((vDir ? 1 : 0) * (nv + 1) + cv) * (nu + 1) + cu;
+            if( fineVerts[index] >= 0 ) {
+                return fineVerts[index];
+            }
+        }
+
+        int length = coarse ? 2 : 1;
+        int u = cu * length;
+        int v = cv * length;
+        float d1 = faceDensity(u, v);
+        float d2 = vDir ? faceDensity(u, v + length) : faceDensity(u + length, v);
+
+        // Same arithmetic as the regular cells so that the fine
+        // vertexes land exactly on the chunk's own vertexes
+        float part = Math.abs(d1) / Math.abs(d2 - d1);
+        toCorner(plane, u, v);
+        point[0] = corner[0] + border;
+        point[1] = corner[1] + border;
+        point[2] = corner[2] + border;
+        int dirAxis = vDir ? vAxis : uAxis;
+        point[dirAxis] += length == 1 ? part : length * part;
+
+        Vector3f norm;
+        if( gradients ) {
+            norm = getCornerNormal(corner[0], corner[1], corner[2], tempNormal);
+            corner[dirAxis] += length;
+            Vector3f n2 = getCornerNormal(corner[0], corner[1], corner[2], tempNormal2);
+            norm.interpolateLocal(n2, part);
+            norm.normalizeLocal();
+        } else {
+            norm = volume.getFieldDirection(point[0], point[1], point[2], tempNormal);
+        }
+        if( xzScale != 1 ) {
+            norm.y *= xzScale;
+            norm.normalizeLocal();
+        }
+        int result = target.addVertex((point[0] - border) * xzScale * voxelSize,
+                                      (point[1] - border) * voxelSize,
+                                      (point[2] - border) * xzScale * voxelSize,
+                                      norm.x, norm.y, norm.z);
+        if( coarse ) {
+            coarseVerts[index] = result;
+        } else {
+            fineVerts[index] = result;
+        }
+        return result;
+    }
+
+    private Vector3f getCornerNormal( int x, int y, int z, Vector3f store ) {
+        float nx = density(x - 1, y, z) - density(x + 1, y, z);
+        float ny = density(x, y - 1, z) - density(x, y + 1, z);
+        float nz = density(x, y, z - 1) - density(x, y, z + 1);
+        return store.set(nx, ny, nz);
+    }
+
+    /**
+     *  Triangulates the loop of the specified number of nodes by ear
+     *  clipping in the plane of the face, keeping the loop's winding.
+     *  Loops with no area, where the fine and coarse contours are the
+     *  same, produce no triangles.
+     */
+    private void triangulate( int count ) {
+        if( count < 3 ) {
+            return;
+        }
+        float area = 0;
+        for( int i = 0; i < count; i++ ) {
+            int a = loop[i];
+            int b = loop[(i + 1) % count];
+            area += nodeU[a] * nodeV[b] - nodeU[b] * nodeV[a];
+        }
+        if( Math.abs(area) < EPSILON ) {
+            return;
+        }
+        float sign = Math.signum(area);
+
+        while( count > 3 ) {
+            int ear = -1;
+            for( int i = 0; i < count && ear < 0; i++ ) {
+                int a = loop[(i + count - 1) % count];
+                int b = loop[i];
+                int c = loop[(i + 1) % count];
+                if( cross(a, b, c) * sign <= 0 ) {
+                    continue;
+                }
+                boolean empty = true;
+                for( int j = 0; j < count && empty; j++ ) {
+                    int p = loop[j];
+                    if( p != a && p != b && p != c && contains(a, b, c, p, sign) ) {
+                        empty = false;
+                    }
+                }
+                if( empty ) {
+                    ear = i;
+                }
+            }
+            if( ear < 0 ) {
+                // Degenerate, so just fan what is left
+                for( int i = 1; i < count - 1; i++ ) {
+                    target.addTriangle(vertex(loop[0]), vertex(loop[i]), vertex(loop[i + 1]));
+                }
+                return;
+            }
+            target.addTriangle(vertex(loop[(ear + count - 1) % count]), vertex(loop[ear]),
+                               vertex(loop[(ear + 1) % count]));
+            System.arraycopy(loop, ear + 1, loop, ear, count - ear - 1);
+            count--;
+        }
+        target.addTriangle(vertex(loop[0]), vertex(loop[1]), vertex(loop[2]));
+    }
+
+    private float cross( int a, int b, int c ) {
+        return (nodeU[b] - nodeU[a]) * (nodeV[c] - nodeV[a])
+             - (nodeV[b] - nodeV[a]) * (nodeU[c] - nodeU[a]);
+    }
+
+    private boolean contains( int a, int b, int c, int p, float sign ) {
+        return cross(a, b, p) * sign > 0 && cross(b, c, p) * sign > 0 && cross(c, a, p) * sign > 0;
+    }
+}
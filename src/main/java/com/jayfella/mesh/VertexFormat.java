@@ -0,0 +1,44 @@
+package com.jayfella.mesh;
+
+/**
+ *  The layout of the position and normal buffers of generated meshes.
+ *
+ *  <p>The quantized formats store positions as normalized signed shorts,
+ *  ie: the chunk local position divided by a position scale, so the
+ *  geometry must be scaled back up with setLocalScale(positionScale).
+ *  The generators that support these formats report the scale they used.
+ *  The mesh bound is set in the same normalized units.  jME's collision
+ *  and picking code only reads float positions so a quantized mesh should
+ *  not be used for collisions; build a Float copy for physics instead.</p>
+ */
+public enum VertexFormat {
+
+    /**
+     *  Three floats per position and three floats per normal, 24 bytes
+     *  per vertex.  This is the default.
+     */
+    Float,
+
+    /**
+     *  Four normalized shorts per position, the last one unused, and four
+     *  normalized bytes per normal, the last one unused, 12 bytes per
+     *  vertex.  The padding keeps every attribute 4 byte aligned when
+     *  interleaved.  Works with the stock jME shaders.
+     */
+    Quantized,
+
+    /**
+     *  Three normalized shorts per position and two normalized bytes per
+     *  normal holding the octahedral encoding of the normal, 8 bytes per
+     *  vertex.  The normal buffer then has two components and requires a
+     *  material whose vertex shader decodes it, ie:
+     *  <pre>
+     *  vec3 n = vec3(oct.xy, 1.0 - abs(oct.x) - abs(oct.y));
+     *  if( n.z &lt; 0.0 ) {
+     *      n.xy = (1.0 - abs(n.yx)) * (step(0.0, n.xy) * 2.0 - 1.0);
+     *  }
+     *  n = normalize(n);
+     *  </pre>
+     */
+    QuantizedOctahedral
+}
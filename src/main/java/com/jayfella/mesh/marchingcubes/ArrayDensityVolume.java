@@ -38,6 +38,10 @@ package com.jayfella.mesh.marchingcubes;
 
 import com.jme3.math.Vector3f;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -46,13 +50,33 @@ import java.util.Arrays;
  *  from an existing DensityField as required.  Intercell
  *  sampling is done using trilinear interpolation.
  *
+ *  <p>Density ranges are answered from the minimum and maximum of
+ *  8x8x8 bricks of values.  These are calculated on the first range
+ *  query and afterwards only the bricks modified by setDensity()
+ *  are recalculated, so range queries should not be made concurrently
+ *  with each other or with modifications.</p>
+ *
  *  @author    Paul Speed
  */
-public class ArrayDensityVolume implements DensityVolume {
+public class ArrayDensityVolume implements RangedDensityVolume {
+
+    private static final int BRICK_SHIFT = 3;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+
+    /**
+     *  The minimum number of z layers in a task when extracting in
+     *  parallel.
+     */
+    private static final int MIN_TASK_LAYERS = 2;
 
     private int cx, cy, cz, cLayer;
     private float[] array;
 
+    private int bx, by, bz;
+    private float[] brickMin;
+    private float[] brickMax;
+    private boolean[] brickDirty;
+
     public ArrayDensityVolume( int width, int height, int depth ) {
         this.array = new float[width * height * depth];
         this.cx = width;
@@ -79,32 +103,132 @@ public class ArrayDensityVolume implements DensityVolume {
     public static ArrayDensityVolume extractVolume( DensityVolume source,
                                                     int xBase, int yBase, int zBase,
                                                     int width, int height, int depth ) {
+        return extractVolume(source, xBase, yBase, zBase, width, height, depth, 1);
+    }
+
+    /**
+     *  Creates a volume of the specified size from every stride'th corner
+     *  of the source starting at the base corner.  This is a precomputed
+     *  lower level of detail of the source that can be meshed with a
+     *  generator whose voxel size is the stride.
+     */
+    public static ArrayDensityVolume extractVolume( DensityVolume source,
+                                                    int xBase, int yBase, int zBase,
+                                                    int width, int height, int depth,
+                                                    int stride ) {
         ArrayDensityVolume result = new ArrayDensityVolume(width, height, depth);
-        int index = 0;
-        float[] target = result.array;
-        for( int z = 0; z < depth; z++ ) {
-            for( int y = 0; y < height; y++ ) {
-                for( int x = 0; x < width; x++ ) {
-                    target[index++] = source.getDensity(xBase+x, yBase+y, zBase+z);
+        result.extract(source, xBase, yBase, zBase, stride);
+        return result;
+    }
+
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+        extract(source, xBase, yBase, zBase, 1);
+    }
+
+    /**
+     *  Creates a volume of the specified size from the source, reading
+     *  the source in parallel on the specified executor.  See
+     *  extract(DensityVolume, int, int, int, Executor).
+     */
+    public static ArrayDensityVolume extractVolume( DensityVolume source,
+                                                    int xBase, int yBase, int zBase,
+                                                    int width, int height, int depth,
+                                                    Executor executor ) {
+        ArrayDensityVolume result = new ArrayDensityVolume(width, height, depth);
+        result.extract(source, xBase, yBase, zBase, executor);
+        return result;
+    }
+
+    /**
+     *  Fills this volume from the source starting at the base corner with
+     *  the z layers split into tasks that run on the specified executor,
+     *  ie: a ForkJoinPool.  The calling thread runs the first task itself
+     *  and then waits for the others.  Every task writes its own layers
+     *  so the result is the same as the sequential extract().  The source
+     *  must be safe to read from several threads at once.
+     *
+     *  <p>This pays off for procedural sources.  Volumes that only store
+     *  values, such as another ArrayDensityVolume, are cheaper to copy
+     *  than to split up and should be read with the plain extract()
+     *  instead.  Volumes too thin to split are extracted on the calling
+     *  thread.</p>
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase, Executor executor ) {
+        int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool)executor).getParallelism()
+                                                       : Runtime.getRuntime().availableProcessors();
+        int count = Math.min(threads * 2, cz / MIN_TASK_LAYERS);
+        if( count < 2 ) {
+            extract(source, xBase, yBase, zBase);
+            return;
+        }
+
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[count - 1];
+        for( int i = 1; i < count; i++ ) {
+            int z0 = (cz * i) / count;
+            int z1 = (cz * (i + 1)) / count;
+            tasks[i - 1] = CompletableFuture.runAsync(() -> extractLayers(source, xBase, yBase, zBase, z0, z1),
+                                                      executor);
+        }
+        RuntimeException error = null;
+        try {
+            extractLayers(source, xBase, yBase, zBase, 0, cz / count);
+        } catch( RuntimeException e ) {
+            error = e;
+        }
+        // Always wait for all of the tasks so that none of them is still
+        // writing once this returns
+        try {
+            CompletableFuture.allOf(tasks).join();
+        } catch( CompletionException e ) {
+            if( error == null ) {
+                Throwable cause = e.getCause();
+                if( cause instanceof Error ) {
+                    throw (Error)cause;
                 }
+                error = cause instanceof RuntimeException ? (RuntimeException)cause : e;
             }
         }
-        return result;
+        invalidateRanges();
+        if( error != null ) {
+            throw error;
+        }
     }
 
-    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+    /**
+     *  Reads the z layers z0 up to z1 from the source.
+     */
+    private void extractLayers( DensityVolume source, int xBase, int yBase, int zBase, int z0, int z1 ) {
+        source.sample(xBase, yBase, zBase + z0, cx, cy, z1 - z0, array, z0 * cLayer);
+    }
+
+    /**
+     *  Fills this volume from every stride'th corner of the source
+     *  starting at the base corner.
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase, int stride ) {
+        if( stride < 1 ) {
+            throw new IllegalArgumentException("Stride must be at least 1:" + stride);
+        }
+        if( stride == 1 ) {
+            extractLayers(source, xBase, yBase, zBase, 0, cz);
+            invalidateRanges();
+            return;
+        }
         int index = 0;
         for( int z = 0; z < cz; z++ ) {
             for( int y = 0; y < cy; y++ ) {
                 for( int x = 0; x < cx; x++ ) {
-                    array[index++] = source.getDensity(xBase+x, yBase+y, zBase+z);
+                    array[index++] = source.getDensity(xBase + x * stride, yBase + y * stride,
+                                                       zBase + z * stride);
                 }
             }
         }
+        invalidateRanges();
     }
 
     public void clear() {
         Arrays.fill(array, -1);
+        invalidateRanges();
     }
 
     private int index( int x, int y, int z ) {
@@ -116,12 +240,128 @@ public class ArrayDensityVolume implements DensityVolume {
 
     public void setDensity( int x, int y, int z, float d ) {
         array[index(x, y, z)] = d;
+        if( brickDirty != null ) {
+            brickDirty[brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT)] = true;
+        }
     }
 
     public float getDensity( int x, int y, int z ) {
         return array[index(x, y, z)];
     }
 
+    /**
+     *  Copies the densities of the specified box of corners a row, or a
+     *  whole layer when the box spans the full width, at a time.  Boxes
+     *  that are one corner wide, such as the x planes that the sweeping
+     *  generators read, are gathered a corner at a time instead.
+     */
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        int index = offset;
+        if( width == 1 ) {
+            for( int z = zBase; z < zBase + depth; z++ ) {
+                for( int i = index(xBase, yBase, z), end = i + height * cx; i < end; i += cx ) {
+                    out[index++] = array[i];
+                }
+            }
+            return;
+        }
+        if( xBase == 0 && width == cx ) {
+            for( int z = zBase; z < zBase + depth; z++ ) {
+                System.arraycopy(array, index(0, yBase, z), out, index, width * height);
+                index += width * height;
+            }
+            return;
+        }
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                System.arraycopy(array, index(xBase, y, z), out, index, width);
+                index += width;
+            }
+        }
+    }
+
+    private int brickIndex( int x, int y, int z ) {
+        return (z * by + y) * bx + x;
+    }
+
+    private void invalidateRanges() {
+        if( brickDirty != null ) {
+            Arrays.fill(brickDirty, true);
+        }
+    }
+
+    private void updateBrick( int x, int y, int z, int brick ) {
+        int xStart = x << BRICK_SHIFT;
+        int yStart = y << BRICK_SHIFT;
+        int zStart = z << BRICK_SHIFT;
+        int xEnd = Math.min(xStart + BRICK_SIZE, cx);
+        int yEnd = Math.min(yStart + BRICK_SIZE, cy);
+        int zEnd = Math.min(zStart + BRICK_SIZE, cz);
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for( int k = zStart; k < zEnd; k++ ) {
+            for( int j = yStart; j < yEnd; j++ ) {
+                for( int i = index(xStart, j, k), end = i + xEnd - xStart; i < end; i++ ) {
+                    float d = array[i];
+                    if( d < min ) {
+                        min = d;
+                    }
+                    if( d > max ) {
+                        max = d;
+                    }
+                }
+            }
+        }
+        brickMin[brick] = min;
+        brickMax[brick] = max;
+        brickDirty[brick] = false;
+    }
+
+    @Override
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+        if( store == null ) {
+            store = new float[2];
+        }
+
+        int xStart = Math.max(x, 0);
+        int yStart = Math.max(y, 0);
+        int zStart = Math.max(z, 0);
+        int xEnd = Math.min(x + sizeX, cx) - 1;
+        int yEnd = Math.min(y + sizeY, cy) - 1;
+        int zEnd = Math.min(z + sizeZ, cz) - 1;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        if( xEnd >= xStart && yEnd >= yStart && zEnd >= zStart ) {
+            if( brickDirty == null ) {
+                bx = (cx + BRICK_SIZE - 1) >> BRICK_SHIFT;
+                by = (cy + BRICK_SIZE - 1) >> BRICK_SHIFT;
+                bz = (cz + BRICK_SIZE - 1) >> BRICK_SHIFT;
+                brickMin = new float[bx * by * bz];
+                brickMax = new float[bx * by * bz];
+                brickDirty = new boolean[bx * by * bz];
+                invalidateRanges();
+            }
+            for( int k = zStart >> BRICK_SHIFT; k <= zEnd >> BRICK_SHIFT; k++ ) {
+                for( int j = yStart >> BRICK_SHIFT; j <= yEnd >> BRICK_SHIFT; j++ ) {
+                    for( int i = xStart >> BRICK_SHIFT; i <= xEnd >> BRICK_SHIFT; i++ ) {
+                        int brick = brickIndex(i, j, k);
+                        if( brickDirty[brick] ) {
+                            updateBrick(i, j, k, brick);
+                        }
+                        min = Math.min(min, brickMin[brick]);
+                        max = Math.max(max, brickMax[brick]);
+                    }
+                }
+            }
+        }
+        store[0] = min;
+        store[1] = max;
+        return store;
+    }
+
     private double trilinear( float x, float y, float z ) {
         int xBase = (int)Math.floor(x);
         int yBase = (int)Math.floor(y);
@@ -0,0 +1,236 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Wraps an expensive DensityVolume, such as a procedural one, and keeps
+ *  the integer corner values that it has been asked for in a cache of
+ *  16x16x16 bricks, ie: the border corners that neighbouring chunks
+ *  share or a chunk that is rebuilt are then only calculated once.
+ *
+ *  <p>Bricks are calculated a whole brick at a time with the source's
+ *  sample() on the first request for any of their corners and the least
+ *  recently used bricks are dropped once the cache grows beyond its byte
+ *  budget.  The volume is safe to read from any number of threads.  A
+ *  brick is only calculated once even when several threads ask for it at
+ *  the same time, the others wait for it, and bricks are calculated
+ *  outside of the cache lock so different bricks are calculated in
+ *  parallel.</p>
+ *
+ *  <p>Non-integer positions and field directions are passed through to
+ *  the source.  If the source changes then invalidate() must be called
+ *  to drop the cached values.</p>
+ */
+public class CachingDensityVolume implements DensityVolume {
+
+    private static final int BRICK_SHIFT = 4;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VALUES = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    /**
+     *  The number of bytes that one cached brick takes up.
+     */
+    public static final int BRICK_BYTES = BRICK_VALUES * 4;
+
+    private final DensityVolume source;
+    private final int maxBricks;
+    private final Map<Long, FutureTask<float[]>> bricks;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     *  Creates a cache of the specified source that keeps at most
+     *  maxBytes of bricks, and always at least one brick.
+     */
+    public CachingDensityVolume( DensityVolume source, long maxBytes ) {
+        if( maxBytes < 0 ) {
+            throw new IllegalArgumentException("Max bytes cannot be negative:" + maxBytes);
+        }
+        this.source = source;
+        this.maxBricks = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / BRICK_BYTES));
+        this.bricks = new LinkedHashMap<Long, FutureTask<float[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Long, FutureTask<float[]>> eldest ) {
+                return size() > maxBricks;
+            }
+        };
+    }
+
+    public DensityVolume getSource() {
+        return source;
+    }
+
+    public long getMaxBytes() {
+        return (long)maxBricks * BRICK_BYTES;
+    }
+
+    public int getCachedBrickCount() {
+        synchronized( bricks ) {
+            return bricks.size();
+        }
+    }
+
+    /**
+     *  Returns the number of brick lookups that found the brick already
+     *  cached or being calculated by another thread.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     *  Returns the number of brick lookups that had to calculate the
+     *  brick.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     *  Returns the fraction of brick lookups that were hits or 0 if there
+     *  have been none.
+     */
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double)hit / total;
+    }
+
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     *  Drops all cached bricks.  Bricks that are being calculated at the
+     *  time are still returned to the threads that wait for them.
+     */
+    public void invalidate() {
+        synchronized( bricks ) {
+            bricks.clear();
+        }
+    }
+
+    private static long brickKey( int x, int y, int z ) {
+        return ((long)(x & 0x1FFFFF) << 42) | ((long)(y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+    }
+
+    /**
+     *  Returns the values of the brick at the specified brick coordinates,
+     *  calculating it if it is not cached.
+     */
+    private float[] getBrick( int x, int y, int z ) {
+        long key = brickKey(x, y, z);
+        FutureTask<float[]> brick;
+        boolean calculate = false;
+        synchronized( bricks ) {
+            brick = bricks.get(key);
+            if( brick == null ) {
+                brick = new FutureTask<>(() -> {
+                    float[] values = new float[BRICK_VALUES];
+                    source.sample(x << BRICK_SHIFT, y << BRICK_SHIFT, z << BRICK_SHIFT,
+                                  BRICK_SIZE, BRICK_SIZE, BRICK_SIZE, values, 0);
+                    return values;
+                });
+                bricks.put(key, brick);
+                calculate = true;
+            }
+        }
+        if( calculate ) {
+            misses.increment();
+            brick.run();
+        } else {
+            hits.increment();
+        }
+
+        boolean interrupted = false;
+        try {
+            while( true ) {
+                try {
+                    return brick.get();
+                } catch( InterruptedException e ) {
+                    interrupted = true;
+                } catch( ExecutionException e ) {
+                    // Do not cache the failure so that the next request
+                    // tries again
+                    synchronized( bricks ) {
+                        bricks.remove(key, brick);
+                    }
+                    Throwable cause = e.getCause();
+                    if( cause instanceof RuntimeException ) {
+                        throw (RuntimeException)cause;
+                    }
+                    if( cause instanceof Error ) {
+                        throw (Error)cause;
+                    }
+                    throw new RuntimeException("Error calculating brick", cause);
+                }
+            }
+        } finally {
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int valueIndex( int x, int y, int z ) {
+        return (((z << BRICK_SHIFT) + y) << BRICK_SHIFT) + x;
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        float[] values = getBrick(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        return values[valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK)];
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        return source.getDensity(x, y, z);
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        return source.getFieldDirection(x, y, z, target);
+    }
+
+    /**
+     *  Copies the specified box of corners from the bricks that it
+     *  overlaps, looking up each brick once.
+     */
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        if( width <= 0 || height <= 0 || depth <= 0 ) {
+            return;
+        }
+        int xEnd = xBase + width;
+        int yEnd = yBase + height;
+        int zEnd = zBase + depth;
+        for( int k = zBase >> BRICK_SHIFT; k <= (zEnd - 1) >> BRICK_SHIFT; k++ ) {
+            int z0 = Math.max(zBase, k << BRICK_SHIFT);
+            int z1 = Math.min(zEnd, (k + 1) << BRICK_SHIFT);
+            for( int j = yBase >> BRICK_SHIFT; j <= (yEnd - 1) >> BRICK_SHIFT; j++ ) {
+                int y0 = Math.max(yBase, j << BRICK_SHIFT);
+                int y1 = Math.min(yEnd, (j + 1) << BRICK_SHIFT);
+                for( int i = xBase >> BRICK_SHIFT; i <= (xEnd - 1) >> BRICK_SHIFT; i++ ) {
+                    int x0 = Math.max(xBase, i << BRICK_SHIFT);
+                    int x1 = Math.min(xEnd, (i + 1) << BRICK_SHIFT);
+                    float[] values = getBrick(i, j, k);
+                    for( int z = z0; z < z1; z++ ) {
+                        for( int y = y0; y < y1; y++ ) {
+                            System.arraycopy(values, valueIndex(x0 & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK),
+                                             out, offset + ((z - zBase) * height + y - yBase) * width + x0 - xBase,
+                                             x1 - x0);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
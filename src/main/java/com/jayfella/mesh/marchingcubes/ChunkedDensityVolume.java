@@ -0,0 +1,368 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+
+/**
+ *  A DensityVolume made of 16x16x16 bricks of values where every brick
+ *  is either a single constant value or a dense array.  Bricks start out
+ *  constant and only get an array on the first setDensity() that changes
+ *  one of their values, so the memory use follows the amount of surface
+ *  in the volume rather than its size.  Intercell sampling is done using
+ *  trilinear interpolation, the same as ArrayDensityVolume.
+ *
+ *  <p>Density ranges are answered per brick.  Dense bricks whose values
+ *  turn out to all be the same when their range is calculated, or when
+ *  compact() is called, are collapsed back into constant bricks.  As with
+ *  ArrayDensityVolume, range queries should not be made concurrently with
+ *  each other or with modifications.</p>
+ */
+public class ChunkedDensityVolume implements RangedDensityVolume {
+
+    private static final int BRICK_SHIFT = 4;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VALUES = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    private final int cx, cy, cz;
+    private final int bx, by, bz;
+
+    // A brick's values, or null when it is constant
+    private final float[][] bricks;
+    private final float[] constants;
+    private final float[] brickMin;
+    private final float[] brickMax;
+    private final boolean[] brickDirty;
+    private int denseCount;
+
+    /**
+     *  Creates a volume of the specified size where every value is -1,
+     *  the same as a cleared ArrayDensityVolume.
+     */
+    public ChunkedDensityVolume( int width, int height, int depth ) {
+        this(width, height, depth, -1);
+    }
+
+    /**
+     *  Creates a volume of the specified size where every value is the
+     *  specified value.
+     */
+    public ChunkedDensityVolume( int width, int height, int depth, float value ) {
+        this.cx = width;
+        this.cy = height;
+        this.cz = depth;
+        this.bx = (width + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.by = (height + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.bz = (depth + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        int count = bx * by * bz;
+        this.bricks = new float[count][];
+        this.constants = new float[count];
+        this.brickMin = new float[count];
+        this.brickMax = new float[count];
+        this.brickDirty = new boolean[count];
+        fill(value);
+    }
+
+    public static ChunkedDensityVolume extractVolume( DensityVolume source,
+                                                      int xBase, int yBase, int zBase,
+                                                      int width, int height, int depth ) {
+        ChunkedDensityVolume result = new ChunkedDensityVolume(width, height, depth);
+        result.extract(source, xBase, yBase, zBase);
+        return result;
+    }
+
+    /**
+     *  Fills this volume from the source starting at the base corner.
+     *  The source is read a brick at a time and only bricks that are not
+     *  uniform keep an array.
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+        float[] scratch = new float[BRICK_VALUES];
+        for( int k = 0; k < bz; k++ ) {
+            for( int j = 0; j < by; j++ ) {
+                for( int i = 0; i < bx; i++ ) {
+                    int brick = brickIndex(i, j, k);
+                    int w = Math.min(BRICK_SIZE, cx - (i << BRICK_SHIFT));
+                    int h = Math.min(BRICK_SIZE, cy - (j << BRICK_SHIFT));
+                    int d = Math.min(BRICK_SIZE, cz - (k << BRICK_SHIFT));
+                    float[] values = bricks[brick] != null ? bricks[brick] : scratch;
+                    if( w == BRICK_SIZE && h == BRICK_SIZE ) {
+                        source.sample(xBase + (i << BRICK_SHIFT), yBase + (j << BRICK_SHIFT),
+                                      zBase + (k << BRICK_SHIFT), w, h, d, values, 0);
+                    } else {
+                        // Partial bricks at the far edges are read a row
+                        // at a time into the brick layout
+                        for( int z = 0; z < d; z++ ) {
+                            for( int y = 0; y < h; y++ ) {
+                                source.sample(xBase + (i << BRICK_SHIFT), yBase + (j << BRICK_SHIFT) + y,
+                                              zBase + (k << BRICK_SHIFT) + z, w, 1, 1,
+                                              values, valueIndex(0, y, z));
+                            }
+                        }
+                    }
+                    if( values == scratch ) {
+                        bricks[brick] = scratch;
+                        denseCount++;
+                        scratch = updateBrick(i, j, k, brick) ? scratch : new float[BRICK_VALUES];
+                    } else {
+                        updateBrick(i, j, k, brick);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Sets every value of this volume to the specified value and frees
+     *  all brick arrays.
+     */
+    public void fill( float value ) {
+        Arrays.fill(bricks, null);
+        Arrays.fill(constants, value);
+        Arrays.fill(brickMin, value);
+        Arrays.fill(brickMax, value);
+        Arrays.fill(brickDirty, false);
+        denseCount = 0;
+    }
+
+    public void clear() {
+        fill(-1);
+    }
+
+    public int getWidth() {
+        return cx;
+    }
+
+    public int getHeight() {
+        return cy;
+    }
+
+    public int getDepth() {
+        return cz;
+    }
+
+    /**
+     *  Returns the number of bricks that currently have an array.
+     */
+    public int getDenseBrickCount() {
+        return denseCount;
+    }
+
+    public int getBrickCount() {
+        return bricks.length;
+    }
+
+    /**
+     *  Returns the approximate number of bytes used by the brick arrays.
+     */
+    public long getDenseMemory() {
+        return (long)denseCount * BRICK_VALUES * 4;
+    }
+
+    /**
+     *  Collapses every modified dense brick whose values are all the same
+     *  into a constant brick.
+     */
+    public void compact() {
+        for( int k = 0; k < bz; k++ ) {
+            for( int j = 0; j < by; j++ ) {
+                for( int i = 0; i < bx; i++ ) {
+                    int brick = brickIndex(i, j, k);
+                    if( brickDirty[brick] ) {
+                        updateBrick(i, j, k, brick);
+                    }
+                }
+            }
+        }
+    }
+
+    private int brickIndex( int x, int y, int z ) {
+        return (z * by + y) * bx + x;
+    }
+
+    private static int valueIndex( int x, int y, int z ) {
+        return (((z << BRICK_SHIFT) + y) << BRICK_SHIFT) + x;
+    }
+
+    public void setDensity( int x, int y, int z, float d ) {
+        int brick = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        float[] values = bricks[brick];
+        if( values == null ) {
+            if( d == constants[brick] ) {
+                return;
+            }
+            values = new float[BRICK_VALUES];
+            Arrays.fill(values, constants[brick]);
+            bricks[brick] = values;
+            denseCount++;
+        }
+        values[valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK)] = d;
+        brickDirty[brick] = true;
+    }
+
+    public float getDensity( int x, int y, int z ) {
+        int brick = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        float[] values = bricks[brick];
+        if( values == null ) {
+            return constants[brick];
+        }
+        return values[valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK)];
+    }
+
+    /**
+     *  Copies the densities of the specified box of corners a brick row
+     *  at a time, filling the rows of constant bricks.
+     */
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        int index = offset;
+        int xEnd = xBase + width;
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                int rowBricks = (z >> BRICK_SHIFT) * by + (y >> BRICK_SHIFT);
+                int rowValues = valueIndex(0, y & BRICK_MASK, z & BRICK_MASK);
+                for( int x = xBase; x < xEnd; ) {
+                    int brick = rowBricks * bx + (x >> BRICK_SHIFT);
+                    int count = Math.min(BRICK_SIZE - (x & BRICK_MASK), xEnd - x);
+                    float[] values = bricks[brick];
+                    if( values == null ) {
+                        Arrays.fill(out, index, index + count, constants[brick]);
+                    } else {
+                        System.arraycopy(values, rowValues + (x & BRICK_MASK), out, index, count);
+                    }
+                    index += count;
+                    x += count;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Recalculates the range of the specified brick and collapses it
+     *  into a constant brick if all of its values are the same.  Returns
+     *  true if it was collapsed.
+     */
+    private boolean updateBrick( int x, int y, int z, int brick ) {
+        float[] values = bricks[brick];
+        int xEnd = Math.min(BRICK_SIZE, cx - (x << BRICK_SHIFT));
+        int yEnd = Math.min(BRICK_SIZE, cy - (y << BRICK_SHIFT));
+        int zEnd = Math.min(BRICK_SIZE, cz - (z << BRICK_SHIFT));
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for( int k = 0; k < zEnd; k++ ) {
+            for( int j = 0; j < yEnd; j++ ) {
+                for( int i = valueIndex(0, j, k), end = i + xEnd; i < end; i++ ) {
+                    float d = values[i];
+                    if( d < min ) {
+                        min = d;
+                    }
+                    if( d > max ) {
+                        max = d;
+                    }
+                }
+            }
+        }
+        brickMin[brick] = min;
+        brickMax[brick] = max;
+        brickDirty[brick] = false;
+        if( min == max ) {
+            bricks[brick] = null;
+            constants[brick] = min;
+            denseCount--;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+        if( store == null ) {
+            store = new float[2];
+        }
+
+        int xStart = Math.max(x, 0);
+        int yStart = Math.max(y, 0);
+        int zStart = Math.max(z, 0);
+        int xEnd = Math.min(x + sizeX, cx) - 1;
+        int yEnd = Math.min(y + sizeY, cy) - 1;
+        int zEnd = Math.min(z + sizeZ, cz) - 1;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        if( xEnd >= xStart && yEnd >= yStart && zEnd >= zStart ) {
+            for( int k = zStart >> BRICK_SHIFT; k <= zEnd >> BRICK_SHIFT; k++ ) {
+                for( int j = yStart >> BRICK_SHIFT; j <= yEnd >> BRICK_SHIFT; j++ ) {
+                    for( int i = xStart >> BRICK_SHIFT; i <= xEnd >> BRICK_SHIFT; i++ ) {
+                        int brick = brickIndex(i, j, k);
+                        if( brickDirty[brick] ) {
+                            updateBrick(i, j, k, brick);
+                        }
+                        min = Math.min(min, brickMin[brick]);
+                        max = Math.max(max, brickMax[brick]);
+                    }
+                }
+            }
+        }
+        store[0] = min;
+        store[1] = max;
+        return store;
+    }
+
+    private double trilinear( float x, float y, float z ) {
+        int xBase = (int)Math.floor(x);
+        int yBase = (int)Math.floor(y);
+        int zBase = (int)Math.floor(z);
+        int xTop = (int)Math.ceil(x);
+        int yTop = (int)Math.ceil(y);
+        int zTop = (int)Math.ceil(z);
+
+        double c000 = getDensity(xBase, yBase, zBase);
+        double c100 = getDensity(xTop, yBase, zBase);
+        double c101 = getDensity(xTop, yBase, zTop);
+        double c001 = getDensity(xBase, yBase, zTop);
+        double c010 = getDensity(xBase, yTop, zBase);
+        double c110 = getDensity(xTop, yTop, zBase);
+        double c111 = getDensity(xTop, yTop, zTop);
+        double c011 = getDensity(xBase, yTop, zTop);
+
+        double xPart = x - xBase;
+        double cx00 = c000 + (c100 - c000) * xPart;
+        double cx01 = c001 + (c101 - c001) * xPart;
+
+        double cx10 = c010 + (c110 - c010) * xPart;
+        double cx11 = c011 + (c111 - c011) * xPart;
+
+        double yPart = y - yBase;
+        double cxy0 = cx00 + (cx10 - cx00) * yPart;
+        double cxy1 = cx01 + (cx11 - cx01) * yPart;
+
+        double zPart = z - zBase;
+        return cxy0 + (cxy1 - cxy0) * zPart;
+    }
+
+    public float getDensity( float x, float y, float z ) {
+        return (float)trilinear(x, y, z);
+    }
+
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+
+        float d = 1f;
+
+        double nx = trilinear(x + d, y, z)
+                - trilinear(x - d, y, z);
+        double ny = trilinear(x, y + d, z)
+                - trilinear(x, y - d, z);
+        double nz = trilinear(x, y, z + d)
+                - trilinear(x, y, z - d);
+
+        if( target == null ) {
+            target = new Vector3f((float)-nx, (float)-ny, (float)-nz).normalizeLocal();
+        } else {
+            target.set((float)-nx, (float)-ny, (float)-nz);
+            target.normalizeLocal();
+        }
+
+        return target;
+    }
+}
@@ -67,4 +67,28 @@ public interface DensityVolume {
      *  potentially predict collisions, etc..
      */
     public Vector3f getFieldDirection( float x, float y, float z, Vector3f target );
+
+    /**
+     *  Reads the densities of a box of integer grid corners starting at
+     *  the base corner into the specified array starting at offset.  The
+     *  values are stored x first, then y, then z, ie: corner (x, y, z) of
+     *  the box goes to offset + (z * height + y) * width + x.  This is the
+     *  same layout as ArrayDensityVolume.
+     *
+     *  <p>The default implementation calls getDensity() for every corner.
+     *  Volumes that can read whole rows or share work between neighboring
+     *  corners should override it, as this is how the mesh generators and
+     *  ArrayDensityVolume.extract() read their corners.</p>
+     */
+    public default void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                                float[] out, int offset ) {
+        int index = offset;
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                for( int x = xBase; x < xBase + width; x++ ) {
+                    out[index++] = getDensity(x, y, z);
+                }
+            }
+        }
+    }
 }
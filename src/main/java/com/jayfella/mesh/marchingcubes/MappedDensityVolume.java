@@ -0,0 +1,402 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *  A DensityVolume stored in a memory mapped file so that volumes larger
+ *  than the heap are paged in and out by the operating system instead of
+ *  being loaded.  Opening a file only reads its header and maps it, so
+ *  it is near instant regardless of the file size.
+ *
+ *  <p>The file is a 64 byte header followed by 16x16x16 bricks of little
+ *  endian floats, x first within a brick and the bricks in x, y, z
+ *  order.  Each brick is 16 KB on disk so the corners that a chunk reads
+ *  are close together in the file.  The header is the magic number
+ *  "JMDV", the format version and the width, height and depth.  A new
+ *  file has every value set to 0.</p>
+ *
+ *  <p>Reads may run on any number of threads at the same time.  Writes
+ *  and range queries, which cache the range of each brick in memory the
+ *  same as ArrayDensityVolume, should not run concurrently with anything
+ *  else.  Changes reach the file when the operating system writes the
+ *  pages back or when force() is called.</p>
+ */
+public class MappedDensityVolume implements RangedDensityVolume, Closeable {
+
+    private static final int MAGIC = 0x4A4D4456; // "JMDV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int BRICK_SHIFT = 4;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VALUES = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+    private static final int BRICK_BYTES = BRICK_VALUES * 4;
+
+    // A mapping cannot be larger than 2 GB so the bricks are mapped in
+    // segments of 1 GB
+    private static final int SEGMENT_SHIFT = 30 - 14;
+    private static final int SEGMENT_BRICKS = 1 << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int cx, cy, cz;
+    private final int bx, by, bz;
+    private final MappedByteBuffer[] mappings;
+    private final FloatBuffer[] segments;
+
+    private float[] brickMin;
+    private float[] brickMax;
+    private boolean[] brickDirty;
+
+    private MappedDensityVolume( FileChannel channel, boolean writable,
+                                 int width, int height, int depth ) throws IOException {
+        this.channel = channel;
+        this.writable = writable;
+        this.cx = width;
+        this.cy = height;
+        this.cz = depth;
+        this.bx = (width + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.by = (height + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.bz = (depth + BRICK_SIZE - 1) >> BRICK_SHIFT;
+
+        long bricks = (long)bx * by * bz;
+        int count = (int)((bricks + SEGMENT_BRICKS - 1) >> SEGMENT_SHIFT);
+        this.mappings = new MappedByteBuffer[count];
+        this.segments = new FloatBuffer[count];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for( int i = 0; i < count; i++ ) {
+            long first = (long)i << SEGMENT_SHIFT;
+            long size = Math.min(SEGMENT_BRICKS, bricks - first) * BRICK_BYTES;
+            mappings[i] = channel.map(mode, HEADER_SIZE + first * BRICK_BYTES, size);
+            mappings[i].order(ByteOrder.LITTLE_ENDIAN);
+            segments[i] = mappings[i].asFloatBuffer();
+        }
+    }
+
+    /**
+     *  Creates a new volume file of the specified size, replacing any
+     *  existing file, and maps it for reading and writing.
+     */
+    public static MappedDensityVolume create( Path path, int width, int height, int depth ) throws IOException {
+        if( width <= 0 || height <= 0 || depth <= 0 ) {
+            throw new IllegalArgumentException("Invalid size:" + width + ", " + height + ", " + depth);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(depth);
+            header.clear();
+            while( header.hasRemaining() ) {
+                channel.write(header, header.position());
+            }
+            return new MappedDensityVolume(channel, true, width, height, depth);
+        } catch( IOException | RuntimeException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     *  Opens an existing volume file, for writing as well as reading if
+     *  writable is true.
+     */
+    public static MappedDensityVolume open( Path path, boolean writable ) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while( header.hasRemaining() ) {
+                if( channel.read(header, header.position()) < 0 ) {
+                    throw new IOException("Not a density volume file:" + path);
+                }
+            }
+            header.flip();
+            if( header.getInt() != MAGIC ) {
+                throw new IOException("Not a density volume file:" + path);
+            }
+            int version = header.getInt();
+            if( version != VERSION ) {
+                throw new IOException("Unsupported density volume version:" + version + " in:" + path);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int depth = header.getInt();
+            if( width <= 0 || height <= 0 || depth <= 0 ) {
+                throw new IOException("Invalid size:" + width + ", " + height + ", " + depth + " in:" + path);
+            }
+            return new MappedDensityVolume(channel, writable, width, height, depth);
+        } catch( IOException | RuntimeException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return cx;
+    }
+
+    public int getHeight() {
+        return cy;
+    }
+
+    public int getDepth() {
+        return cz;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     *  Fills this volume from the source starting at the base corner, a
+     *  brick at a time.
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+        float[] values = new float[BRICK_VALUES];
+        for( int k = 0; k < bz; k++ ) {
+            for( int j = 0; j < by; j++ ) {
+                for( int i = 0; i < bx; i++ ) {
+                    int x = i << BRICK_SHIFT;
+                    int y = j << BRICK_SHIFT;
+                    int z = k << BRICK_SHIFT;
+                    int w = Math.min(BRICK_SIZE, cx - x);
+                    int h = Math.min(BRICK_SIZE, cy - y);
+                    int d = Math.min(BRICK_SIZE, cz - z);
+                    if( w < BRICK_SIZE || h < BRICK_SIZE ) {
+                        // Keep the brick layout for the partial bricks
+                        // at the far edges
+                        Arrays.fill(values, 0);
+                        for( int c = 0; c < d; c++ ) {
+                            for( int b = 0; b < h; b++ ) {
+                                source.sample(xBase + x, yBase + y + b, zBase + z + c, w, 1, 1,
+                                              values, valueIndex(0, b, c));
+                            }
+                        }
+                    } else {
+                        source.sample(xBase + x, yBase + y, zBase + z, w, h, d, values, 0);
+                    }
+                    long brick = brickIndex(i, j, k);
+                    FloatBuffer segment = segments[(int)(brick >> SEGMENT_SHIFT)].duplicate();
+                    segment.position((int)(brick & (SEGMENT_BRICKS - 1)) * BRICK_VALUES);
+                    segment.put(values);
+                }
+            }
+        }
+        invalidateRanges();
+    }
+
+    /**
+     *  Writes any changes that are still only in memory to the file.
+     */
+    public void force() {
+        for( MappedByteBuffer mapping : mappings ) {
+            mapping.force();
+        }
+    }
+
+    /**
+     *  Closes the file.  The mapping itself is released by the garbage
+     *  collector so the volume must not be used after it is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if( writable ) {
+            force();
+        }
+        channel.close();
+    }
+
+    private long brickIndex( int x, int y, int z ) {
+        return ((long)z * by + y) * bx + x;
+    }
+
+    private static int valueIndex( int x, int y, int z ) {
+        return (((z << BRICK_SHIFT) + y) << BRICK_SHIFT) + x;
+    }
+
+    public void setDensity( int x, int y, int z, float d ) {
+        long brick = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        segments[(int)(brick >> SEGMENT_SHIFT)].put(valueOffset(brick, x, y, z), d);
+        if( brickDirty != null ) {
+            brickDirty[(int)brick] = true;
+        }
+    }
+
+    public float getDensity( int x, int y, int z ) {
+        long brick = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        return segments[(int)(brick >> SEGMENT_SHIFT)].get(valueOffset(brick, x, y, z));
+    }
+
+    private static int valueOffset( long brick, int x, int y, int z ) {
+        return (int)(brick & (SEGMENT_BRICKS - 1)) * BRICK_VALUES
+                + valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK);
+    }
+
+    /**
+     *  Reads the specified box of corners a brick row at a time.
+     */
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        int index = offset;
+        int xEnd = xBase + width;
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                for( int x = xBase; x < xEnd; ) {
+                    long brick = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+                    FloatBuffer segment = segments[(int)(brick >> SEGMENT_SHIFT)];
+                    int count = Math.min(BRICK_SIZE - (x & BRICK_MASK), xEnd - x);
+                    for( int i = valueOffset(brick, x, y, z), end = i + count; i < end; i++ ) {
+                        out[index++] = segment.get(i);
+                    }
+                    x += count;
+                }
+            }
+        }
+    }
+
+    private void invalidateRanges() {
+        if( brickDirty != null ) {
+            Arrays.fill(brickDirty, true);
+        }
+    }
+
+    private void updateBrick( int x, int y, int z, int brick ) {
+        FloatBuffer segment = segments[brick >> SEGMENT_SHIFT];
+        int base = (brick & (SEGMENT_BRICKS - 1)) * BRICK_VALUES;
+        int xEnd = Math.min(BRICK_SIZE, cx - (x << BRICK_SHIFT));
+        int yEnd = Math.min(BRICK_SIZE, cy - (y << BRICK_SHIFT));
+        int zEnd = Math.min(BRICK_SIZE, cz - (z << BRICK_SHIFT));
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for( int k = 0; k < zEnd; k++ ) {
+            for( int j = 0; j < yEnd; j++ ) {
+                for( int i = base + valueIndex(0, j, k), end = i + xEnd; i < end; i++ ) {
+                    float d = segment.get(i);
+                    if( d < min ) {
+                        min = d;
+                    }
+                    if( d > max ) {
+                        max = d;
+                    }
+                }
+            }
+        }
+        brickMin[brick] = min;
+        brickMax[brick] = max;
+        brickDirty[brick] = false;
+    }
+
+    @Override
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+        if( store == null ) {
+            store = new float[2];
+        }
+
+        int xStart = Math.max(x, 0);
+        int yStart = Math.max(y, 0);
+        int zStart = Math.max(z, 0);
+        int xEnd = Math.min(x + sizeX, cx) - 1;
+        int yEnd = Math.min(y + sizeY, cy) - 1;
+        int zEnd = Math.min(z + sizeZ, cz) - 1;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        if( xEnd >= xStart && yEnd >= yStart && zEnd >= zStart ) {
+            if( brickDirty == null ) {
+                // Ranges are calculated on first use so that opening a
+                // file does not read it
+                int count = bx * by * bz;
+                brickMin = new float[count];
+                brickMax = new float[count];
+                brickDirty = new boolean[count];
+                invalidateRanges();
+            }
+            for( int k = zStart >> BRICK_SHIFT; k <= zEnd >> BRICK_SHIFT; k++ ) {
+                for( int j = yStart >> BRICK_SHIFT; j <= yEnd >> BRICK_SHIFT; j++ ) {
+                    for( int i = xStart >> BRICK_SHIFT; i <= xEnd >> BRICK_SHIFT; i++ ) {
+                        int brick = (int)brickIndex(i, j, k);
+                        if( brickDirty[brick] ) {
+                            updateBrick(i, j, k, brick);
+                        }
+                        min = Math.min(min, brickMin[brick]);
+                        max = Math.max(max, brickMax[brick]);
+                    }
+                }
+            }
+        }
+        store[0] = min;
+        store[1] = max;
+        return store;
+    }
+
+    private double trilinear( float x, float y, float z ) {
+        int xBase = (int)Math.floor(x);
+        int yBase = (int)Math.floor(y);
+        int zBase = (int)Math.floor(z);
+        int xTop = (int)Math.ceil(x);
+        int yTop = (int)Math.ceil(y);
+        int zTop = (int)Math.ceil(z);
+
+        double c000 = getDensity(xBase, yBase, zBase);
+        double c100 = getDensity(xTop, yBase, zBase);
+        double c101 = getDensity(xTop, yBase, zTop);
+        double c001 = getDensity(xBase, yBase, zTop);
+        double c010 = getDensity(xBase, yTop, zBase);
+        double c110 = getDensity(xTop, yTop, zBase);
+        double c111 = getDensity(xTop, yTop, zTop);
+        double c011 = getDensity(xBase, yTop, zTop);
+
+        double xPart = x - xBase;
+        double cx00 = c000 + (c100 - c000) * xPart;
+        double cx01 = c001 + (c101 - c001) * xPart;
+
+        double cx10 = c010 + (c110 - c010) * xPart;
+        double cx11 = c011 + (c111 - c011) * xPart;
+
+        double yPart = y - yBase;
+        double cxy0 = cx00 + (cx10 - cx00) * yPart;
+        double cxy1 = cx01 + (cx11 - cx01) * yPart;
+
+        double zPart = z - zBase;
+        return cxy0 + (cxy1 - cxy0) * zPart;
+    }
+
+    public float getDensity( float x, float y, float z ) {
+        return (float)trilinear(x, y, z);
+    }
+
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+
+        float d = 1f;
+
+        double nx = trilinear(x + d, y, z)
+                - trilinear(x - d, y, z);
+        double ny = trilinear(x, y + d, z)
+                - trilinear(x, y - d, z);
+        double nz = trilinear(x, y, z + d)
+                - trilinear(x, y, z - d);
+
+        if( target == null ) {
+            target = new Vector3f((float)-nx, (float)-ny, (float)-nz).normalizeLocal();
+        } else {
+            target.set((float)-nx, (float)-ny, (float)-nz);
+            target.normalizeLocal();
+        }
+
+        return target;
+    }
+}
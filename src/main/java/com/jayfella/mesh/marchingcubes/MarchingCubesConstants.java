@@ -36,6 +36,7 @@
 
 package com.jayfella.mesh.marchingcubes;
 
+import java.util.Arrays;
 
 /**
  *  Constants used internal to the Marching Cubes mesh generator.
@@ -321,4 +322,109 @@ public class MarchingCubesConstants {
             {{  0,  3,  8 }},
             {}
     };
+
+    /**
+     *  For each cube case and cell face, the directed segments along
+     *  which the case's surface meets that face.  Faces are numbered
+     *  axis * 2 + side, ie: -x, +x, -y, +y, -z, +z, and each segment is a
+     *  pair of edge indexes in the winding order of the triangle that
+     *  contains it.  These are derived from triEdges so that transition
+     *  cells always agree with the regular cells they connect to.
+     */
+    public static int[][][] faceSegments = new int[256][6][];
+
+    static {
+        int[] segments = new int[32];
+        for( int mask = 0; mask < 256; mask++ ) {
+            int[][] triangles = triEdges[mask];
+            for( int face = 0; face < 6; face++ ) {
+                int axis = face >> 1;
+                int side = face & 1;
+                int count = 0;
+                for( int[] triangle : triangles ) {
+                    for( int i = 0; i < 3; i++ ) {
+                        int a = triangle[i];
+                        int b = triangle[(i + 1) % 3];
+                        if( !isOnFace(a, axis, side) || !isOnFace(b, axis, side)
+                            || isShared(triangles, a, b) ) {
+                            continue;
+                        }
+                        segments[count++] = a;
+                        segments[count++] = b;
+                    }
+                }
+                faceSegments[mask][face] = Arrays.copyOf(segments, count);
+            }
+        }
+    }
+
+    /**
+     *  The triangle edges of every case flattened into one array, three
+     *  per triangle.  The edges of case i start at caseOffsets[i] and
+     *  there are caseCounts[i] of them.  Walking one int array is much
+     *  cheaper in the inner loops than walking the jagged triEdges.
+     */
+    public static final int[] caseEdges;
+    public static final int[] caseOffsets = new int[256];
+    public static final int[] caseCounts = new int[256];
+
+    /**
+     *  For each case, a bit mask of the edges that its triangles use.
+     */
+    public static final int[] caseEdgeMasks = new int[256];
+
+    /**
+     *  For each edge, four values: the x, y, z offset of the corner that
+     *  the edge starts at and the axis of the edge, 0 = x, 1 = y, 2 = z.
+     *  Since every corner owns the three edges that start at it, this is
+     *  where a mesher that stores one vertex per corner and axis finds
+     *  the vertex of a cell's edge.
+     */
+    public static final int[] edgeSlots = new int[12 * 4];
+
+    static {
+        int total = 0;
+        for( int[][] triangles : triEdges ) {
+            total += triangles.length * 3;
+        }
+        caseEdges = new int[total];
+        int offset = 0;
+        for( int mask = 0; mask < 256; mask++ ) {
+            caseOffsets[mask] = offset;
+            for( int[] triangle : triEdges[mask] ) {
+                for( int edge : triangle ) {
+                    caseEdges[offset++] = edge;
+                    caseEdgeMasks[mask] |= 1 << edge;
+                }
+            }
+            caseCounts[mask] = offset - caseOffsets[mask];
+        }
+
+        for( int edge = 0; edge < 12; edge++ ) {
+            int[] dir = edgeDirs[edge];
+            edgeSlots[edge * 4] = edgeStarts[edge][0];
+            edgeSlots[edge * 4 + 1] = edgeStarts[edge][1];
+            edgeSlots[edge * 4 + 2] = edgeStarts[edge][2];
+            edgeSlots[edge * 4 + 3] = dir[0] != 0 ? 0 : dir[1] != 0 ? 1 : 2;
+        }
+    }
+
+    private static boolean isOnFace( int edge, int axis, int side ) {
+        return edgeStarts[edge][axis] == side && edgeEnds[edge][axis] == side;
+    }
+
+    /**
+     *  Returns true if the edge from a to b is used in both directions,
+     *  ie: it is inside the surface rather than on its boundary.
+     */
+    private static boolean isShared( int[][] triangles, int a, int b ) {
+        for( int[] triangle : triangles ) {
+            for( int i = 0; i < 3; i++ ) {
+                if( triangle[i] == b && triangle[(i + 1) % 3] == a ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
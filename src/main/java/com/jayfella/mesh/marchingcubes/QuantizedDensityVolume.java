@@ -0,0 +1,305 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+
+/**
+ *  Base class for the DensityVolumes that store each value as a signed
+ *  fixed point level instead of a float, see ByteDensityVolume and
+ *  ShortDensityVolume.  Values are clamped to the +/- clamp range and
+ *  stored in steps of clampRange / maxLevel.
+ *
+ *  <p>The mesh generators only need the sign of a value plus enough
+ *  precision to place the surface between two corners, so the clamp
+ *  range should cover the density change over a few cells around the
+ *  surface.  Values further out are clamped which does not change the
+ *  mesh.  The sign is always preserved: positive values never round
+ *  down to 0, so the generators see exactly the same solid corners and
+ *  produce the same triangles as for the original values.  Only the
+ *  vertexes move along their edges, by about a step divided by the
+ *  density change over the edge, so 8 bit levels are best kept to
+ *  fields that change steadily across the surface.</p>
+ *
+ *  <p>Density ranges are answered from the minimum and maximum of 8x8x8
+ *  bricks of levels, the same as ArrayDensityVolume, so range queries
+ *  should not be made concurrently with each other or with
+ *  modifications.</p>
+ */
+public abstract class QuantizedDensityVolume implements RangedDensityVolume {
+
+    private static final int BRICK_SHIFT = 3;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+
+    protected final int cx, cy, cz, cLayer;
+    private final float clampRange;
+    private final int maxLevel;
+    private final float step;
+    private final float inverseStep;
+
+    private int bx, by, bz;
+    private int[] brickMin;
+    private int[] brickMax;
+    private boolean[] brickDirty;
+
+    protected QuantizedDensityVolume( int width, int height, int depth, float clampRange, int maxLevel ) {
+        if( !(clampRange > 0) ) {
+            throw new IllegalArgumentException("Clamp range must be positive:" + clampRange);
+        }
+        this.cx = width;
+        this.cy = height;
+        this.cz = depth;
+        this.cLayer = cx * cy;
+        this.clampRange = clampRange;
+        this.maxLevel = maxLevel;
+        this.step = clampRange / maxLevel;
+        this.inverseStep = maxLevel / clampRange;
+    }
+
+    /**
+     *  Returns the level stored at the specified array index.
+     */
+    protected abstract int getLevel( int index );
+
+    /**
+     *  Stores the level at the specified array index.  The level is
+     *  always between -maxLevel and maxLevel.
+     */
+    protected abstract void setLevel( int index, int level );
+
+    public float getClampRange() {
+        return clampRange;
+    }
+
+    /**
+     *  Returns the difference between two neighbouring stored values.
+     */
+    public float getStep() {
+        return step;
+    }
+
+    protected final int encode( float d ) {
+        float clamped = Math.max(-clampRange, Math.min(clampRange, d));
+        int level = Math.round(clamped * inverseStep);
+        if( level <= 0 && d > 0 ) {
+            // Keep the sign so that solid corners stay solid
+            level = 1;
+        }
+        return level;
+    }
+
+    protected final float decode( int level ) {
+        return level * step;
+    }
+
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+        extract(source, xBase, yBase, zBase, 1);
+    }
+
+    /**
+     *  Fills this volume from every stride'th corner of the source
+     *  starting at the base corner.
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase, int stride ) {
+        if( stride < 1 ) {
+            throw new IllegalArgumentException("Stride must be at least 1:" + stride);
+        }
+        float[] row = new float[cx];
+        int index = 0;
+        for( int z = 0; z < cz; z++ ) {
+            for( int y = 0; y < cy; y++ ) {
+                if( stride == 1 ) {
+                    source.sample(xBase, yBase + y, zBase + z, cx, 1, 1, row, 0);
+                } else {
+                    for( int x = 0; x < cx; x++ ) {
+                        row[x] = source.getDensity(xBase + x * stride, yBase + y * stride,
+                                                   zBase + z * stride);
+                    }
+                }
+                for( int x = 0; x < cx; x++ ) {
+                    setLevel(index++, encode(row[x]));
+                }
+            }
+        }
+        invalidateRanges();
+    }
+
+    public void clear() {
+        int level = encode(-1);
+        for( int i = 0, n = cLayer * cz; i < n; i++ ) {
+            setLevel(i, level);
+        }
+        invalidateRanges();
+    }
+
+    protected final int index( int x, int y, int z ) {
+        return z * cLayer + cx * y + x;
+    }
+
+    /**
+     *  Stores the specified value, clamped and rounded to the nearest
+     *  step while keeping its sign.
+     */
+    public void setDensity( int x, int y, int z, float d ) {
+        setLevel(index(x, y, z), encode(d));
+        if( brickDirty != null ) {
+            brickDirty[brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT)] = true;
+        }
+    }
+
+    public float getDensity( int x, int y, int z ) {
+        return decode(getLevel(index(x, y, z)));
+    }
+
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        int index = offset;
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                for( int i = index(xBase, y, z), end = i + width; i < end; i++ ) {
+                    out[index++] = decode(getLevel(i));
+                }
+            }
+        }
+    }
+
+    private int brickIndex( int x, int y, int z ) {
+        return (z * by + y) * bx + x;
+    }
+
+    private void invalidateRanges() {
+        if( brickDirty != null ) {
+            Arrays.fill(brickDirty, true);
+        }
+    }
+
+    private void updateBrick( int x, int y, int z, int brick ) {
+        int xStart = x << BRICK_SHIFT;
+        int yStart = y << BRICK_SHIFT;
+        int zStart = z << BRICK_SHIFT;
+        int xEnd = Math.min(xStart + BRICK_SIZE, cx);
+        int yEnd = Math.min(yStart + BRICK_SIZE, cy);
+        int zEnd = Math.min(zStart + BRICK_SIZE, cz);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for( int k = zStart; k < zEnd; k++ ) {
+            for( int j = yStart; j < yEnd; j++ ) {
+                for( int i = index(xStart, j, k), end = i + xEnd - xStart; i < end; i++ ) {
+                    int level = getLevel(i);
+                    if( level < min ) {
+                        min = level;
+                    }
+                    if( level > max ) {
+                        max = level;
+                    }
+                }
+            }
+        }
+        brickMin[brick] = min;
+        brickMax[brick] = max;
+        brickDirty[brick] = false;
+    }
+
+    @Override
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+        if( store == null ) {
+            store = new float[2];
+        }
+
+        int xStart = Math.max(x, 0);
+        int yStart = Math.max(y, 0);
+        int zStart = Math.max(z, 0);
+        int xEnd = Math.min(x + sizeX, cx) - 1;
+        int yEnd = Math.min(y + sizeY, cy) - 1;
+        int zEnd = Math.min(z + sizeZ, cz) - 1;
+
+        if( xEnd < xStart || yEnd < yStart || zEnd < zStart ) {
+            store[0] = Float.POSITIVE_INFINITY;
+            store[1] = Float.NEGATIVE_INFINITY;
+            return store;
+        }
+        if( brickDirty == null ) {
+            bx = (cx + BRICK_SIZE - 1) >> BRICK_SHIFT;
+            by = (cy + BRICK_SIZE - 1) >> BRICK_SHIFT;
+            bz = (cz + BRICK_SIZE - 1) >> BRICK_SHIFT;
+            brickMin = new int[bx * by * bz];
+            brickMax = new int[bx * by * bz];
+            brickDirty = new boolean[bx * by * bz];
+            invalidateRanges();
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for( int k = zStart >> BRICK_SHIFT; k <= zEnd >> BRICK_SHIFT; k++ ) {
+            for( int j = yStart >> BRICK_SHIFT; j <= yEnd >> BRICK_SHIFT; j++ ) {
+                for( int i = xStart >> BRICK_SHIFT; i <= xEnd >> BRICK_SHIFT; i++ ) {
+                    int brick = brickIndex(i, j, k);
+                    if( brickDirty[brick] ) {
+                        updateBrick(i, j, k, brick);
+                    }
+                    min = Math.min(min, brickMin[brick]);
+                    max = Math.max(max, brickMax[brick]);
+                }
+            }
+        }
+        store[0] = decode(min);
+        store[1] = decode(max);
+        return store;
+    }
+
+    private double trilinear( float x, float y, float z ) {
+        int xBase = (int)Math.floor(x);
+        int yBase = (int)Math.floor(y);
+        int zBase = (int)Math.floor(z);
+        int xTop = (int)Math.ceil(x);
+        int yTop = (int)Math.ceil(y);
+        int zTop = (int)Math.ceil(z);
+
+        double c000 = getDensity(xBase, yBase, zBase);
+        double c100 = getDensity(xTop, yBase, zBase);
+        double c101 = getDensity(xTop, yBase, zTop);
+        double c001 = getDensity(xBase, yBase, zTop);
+        double c010 = getDensity(xBase, yTop, zBase);
+        double c110 = getDensity(xTop, yTop, zBase);
+        double c111 = getDensity(xTop, yTop, zTop);
+        double c011 = getDensity(xBase, yTop, zTop);
+
+        double xPart = x - xBase;
+        double cx00 = c000 + (c100 - c000) * xPart;
+        double cx01 = c001 + (c101 - c001) * xPart;
+
+        double cx10 = c010 + (c110 - c010) * xPart;
+        double cx11 = c011 + (c111 - c011) * xPart;
+
+        double yPart = y - yBase;
+        double cxy0 = cx00 + (cx10 - cx00) * yPart;
+        double cxy1 = cx01 + (cx11 - cx01) * yPart;
+
+        double zPart = z - zBase;
+        return cxy0 + (cxy1 - cxy0) * zPart;
+    }
+
+    public float getDensity( float x, float y, float z ) {
+        return (float)trilinear(x, y, z);
+    }
+
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+
+        float d = 1f;
+
+        double nx = trilinear(x + d, y, z)
+                - trilinear(x - d, y, z);
+        double ny = trilinear(x, y + d, z)
+                - trilinear(x, y - d, z);
+        double nz = trilinear(x, y, z + d)
+                - trilinear(x, y, z - d);
+
+        if( target == null ) {
+            target = new Vector3f((float)-nx, (float)-ny, (float)-nz).normalizeLocal();
+        } else {
+            target.set((float)-nx, (float)-ny, (float)-nz);
+            target.normalizeLocal();
+        }
+
+        return target;
+    }
+}
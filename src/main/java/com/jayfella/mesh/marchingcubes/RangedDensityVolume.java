@@ -0,0 +1,20 @@
+package com.jayfella.mesh.marchingcubes;
+
+/**
+ *  A DensityVolume that can cheaply report the range of its
+ *  densities over a box of grid corners.  Mesh generators use this to
+ *  skip chunks, or blocks of cells within a chunk, that are entirely
+ *  solid or entirely empty without sampling them.
+ */
+public interface RangedDensityVolume extends DensityVolume {
+
+    /**
+     *  Retrieves the range of the densities at the integer grid corners
+     *  from (x, y, z) to (x + sizeX - 1, y + sizeY - 1, z + sizeZ - 1)
+     *  inclusive.  The minimum is stored in store[0] and the maximum in
+     *  store[1].  The range may be conservative, ie: wider than the actual
+     *  range, but it must contain every getDensity(int, int, int) value
+     *  in the box.  If store is null then a new array is created.
+     */
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store );
+}
@@ -0,0 +1,53 @@
+package com.jayfella.mesh.marchingcubes;
+
+/**
+ *  A DensityVolume backed by a fixed size array of 16 bit levels, two bytes
+ *  per value instead of the four of ArrayDensityVolume.  Values are
+ *  clamped to +/- the clamp range and rounded to the nearest of
+ *  32767 steps on either side of 0 while keeping their sign, see
+ *  QuantizedDensityVolume.  Intercell sampling is done using trilinear
+ *  interpolation.
+ */
+public class ShortDensityVolume extends QuantizedDensityVolume {
+
+    private final short[] array;
+
+    /**
+     *  Creates a volume of the specified size that stores values between
+     *  -clampRange and clampRange.  All values start out as 0.
+     */
+    public ShortDensityVolume( int width, int height, int depth, float clampRange ) {
+        super(width, height, depth, clampRange, Short.MAX_VALUE);
+        this.array = new short[width * height * depth];
+    }
+
+    public static ShortDensityVolume extractVolume( DensityVolume source, float clampRange,
+                                                    int xBase, int yBase, int zBase,
+                                                    int width, int height, int depth ) {
+        return extractVolume(source, clampRange, xBase, yBase, zBase, width, height, depth, 1);
+    }
+
+    /**
+     *  Creates a volume of the specified size from every stride'th corner
+     *  of the source starting at the base corner, the same as
+     *  ArrayDensityVolume.extractVolume().
+     */
+    public static ShortDensityVolume extractVolume( DensityVolume source, float clampRange,
+                                                    int xBase, int yBase, int zBase,
+                                                    int width, int height, int depth,
+                                                    int stride ) {
+        ShortDensityVolume result = new ShortDensityVolume(width, height, depth, clampRange);
+        result.extract(source, xBase, yBase, zBase, stride);
+        return result;
+    }
+
+    @Override
+    protected int getLevel( int index ) {
+        return array[index];
+    }
+
+    @Override
+    protected void setLevel( int index, int level ) {
+        array[index] = (short)level;
+    }
+}
@@ -0,0 +1,99 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+
+/**
+ *  A view of a source DensityVolume that samples every stride'th corner
+ *  of the source starting at a base corner, ie: corner (x, y, z) of this
+ *  volume is corner (xBase + x * stride, yBase + y * stride, zBase + z * stride)
+ *  of the source.  This lets the mesh generators build a coarse level of
+ *  detail mesh of a large region for the cost of a small chunk, usually
+ *  together with MarchingCubesMeshGenerator.setVoxelSize(stride).
+ *
+ *  <p>No values are copied so every sample is forwarded to the source.
+ *  Use ArrayDensityVolume.extractVolume() with a stride instead when the
+ *  coarse values will be read many times.</p>
+ */
+public class StridedDensityVolume implements RangedDensityVolume {
+
+    private final DensityVolume source;
+    private final int xBase;
+    private final int yBase;
+    private final int zBase;
+    private final int stride;
+
+    public StridedDensityVolume( DensityVolume source, int xBase, int yBase, int zBase, int stride ) {
+        if( stride < 1 ) {
+            throw new IllegalArgumentException("Stride must be at least 1:" + stride);
+        }
+        this.source = source;
+        this.xBase = xBase;
+        this.yBase = yBase;
+        this.zBase = zBase;
+        this.stride = stride;
+    }
+
+    public DensityVolume getSource() {
+        return source;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        return source.getDensity(xBase + x * stride, yBase + y * stride, zBase + z * stride);
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        return source.getDensity(xBase + x * stride, yBase + y * stride, zBase + z * stride);
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        // A uniform scale does not change the direction
+        return source.getFieldDirection(xBase + x * stride, yBase + y * stride, zBase + z * stride,
+                                        target);
+    }
+
+    /**
+     *  Forwards to the source's sample() when the stride is 1.
+     */
+    @Override
+    public void sample( int x, int y, int z, int width, int height, int depth, float[] out, int offset ) {
+        if( stride == 1 ) {
+            source.sample(xBase + x, yBase + y, zBase + z, width, height, depth, out, offset);
+            return;
+        }
+        // Strided corners are not adjacent in the source so they are
+        // read one at a time
+        RangedDensityVolume.super.sample(x, y, z, width, height, depth, out, offset);
+    }
+
+    /**
+     *  Returns the range of the source over the box of source corners
+     *  that the specified box of strided corners spans.  This includes
+     *  the skipped corners so it is conservative.  If the source is not
+     *  a RangedDensityVolume then the range is unbounded.
+     */
+    @Override
+    public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+        if( store == null ) {
+            store = new float[2];
+        }
+        if( !(source instanceof RangedDensityVolume) ) {
+            store[0] = Float.NEGATIVE_INFINITY;
+            store[1] = Float.POSITIVE_INFINITY;
+            return store;
+        }
+        return ((RangedDensityVolume)source).getDensityRange(xBase + x * stride,
+                                                             yBase + y * stride,
+                                                             zBase + z * stride,
+                                                             (sizeX - 1) * stride + 1,
+                                                             (sizeY - 1) * stride + 1,
+                                                             (sizeZ - 1) * stride + 1,
+                                                             store);
+    }
+}
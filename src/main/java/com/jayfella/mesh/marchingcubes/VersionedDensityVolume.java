@@ -0,0 +1,465 @@
+package com.jayfella.mesh.marchingcubes;
+
+import com.jme3.math.Vector3f;
+import java.util.Arrays;
+
+/**
+ *  An editable DensityVolume of 16x16x16 copy on write bricks that hands
+ *  out immutable snapshots, so that mesh builds on worker threads can
+ *  read a consistent volume without locks while edits carry on, ie:
+ *  <pre>
+ *  Snapshot snapshot = volume.snapshot();
+ *  service.submit(chunkKey, distance, snapshot);
+ *  volume.setDensity(x, y, z, d); // not seen by the snapshot
+ *  </pre>
+ *
+ *  <p>snapshot() freezes the current bricks and brick table.  The next
+ *  edit of a frozen brick copies it into a new brick version, and the
+ *  first edit after a snapshot copies the brick table, so a snapshot
+ *  costs the range updates of the bricks edited since the last one and
+ *  edits cost one brick copy per brick per snapshot.  Bricks that are
+ *  all one value are stored as a single constant.  A brick is reclaimed
+ *  by the garbage collector once neither the volume nor any snapshot
+ *  that is still reachable refers to it.</p>
+ *
+ *  <p>All methods of the volume itself must be called from one thread,
+ *  or with outside synchronization.  Snapshots may be read from any
+ *  number of threads.</p>
+ */
+public class VersionedDensityVolume implements DensityVolume {
+
+    private static final int BRICK_SHIFT = 4;
+    private static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    private static final int BRICK_MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VALUES = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    private final int cx, cy, cz;
+    private final int bx, by, bz;
+
+    private Brick[] table;
+    private long tableVersion;
+    private long version;
+
+    // A view of the current bricks for reading the volume itself.  It
+    // is not frozen like the snapshots are.
+    private Snapshot live;
+
+    // The bricks edited since the last snapshot
+    private int[] dirty = new int[16];
+    private int dirtyCount;
+
+    /**
+     *  Creates a volume of the specified size where every value is -1,
+     *  the same as a cleared ArrayDensityVolume.
+     */
+    public VersionedDensityVolume( int width, int height, int depth ) {
+        this(width, height, depth, -1);
+    }
+
+    /**
+     *  Creates a volume of the specified size where every value is the
+     *  specified value.
+     */
+    public VersionedDensityVolume( int width, int height, int depth, float value ) {
+        this.cx = width;
+        this.cy = height;
+        this.cz = depth;
+        this.bx = (width + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.by = (height + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.bz = (depth + BRICK_SIZE - 1) >> BRICK_SHIFT;
+        this.table = new Brick[bx * by * bz];
+        Arrays.fill(table, new Brick(-1, value));
+        this.live = new Snapshot(this, table, version);
+    }
+
+    public static VersionedDensityVolume extractVolume( DensityVolume source,
+                                                        int xBase, int yBase, int zBase,
+                                                        int width, int height, int depth ) {
+        VersionedDensityVolume result = new VersionedDensityVolume(width, height, depth);
+        result.extract(source, xBase, yBase, zBase);
+        return result;
+    }
+
+    public int getWidth() {
+        return cx;
+    }
+
+    public int getHeight() {
+        return cy;
+    }
+
+    public int getDepth() {
+        return cz;
+    }
+
+    /**
+     *  Returns the number of snapshots that have been taken, which is the
+     *  version that the next snapshot will have.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     *  Fills this volume from the source starting at the base corner, a
+     *  brick at a time.  Bricks that are all one value are stored as
+     *  constants.
+     */
+    public void extract( DensityVolume source, int xBase, int yBase, int zBase ) {
+        ensureTable();
+        for( int k = 0; k < bz; k++ ) {
+            for( int j = 0; j < by; j++ ) {
+                for( int i = 0; i < bx; i++ ) {
+                    Brick brick = new Brick(version, new float[BRICK_VALUES]);
+                    int x = i << BRICK_SHIFT;
+                    int y = j << BRICK_SHIFT;
+                    int z = k << BRICK_SHIFT;
+                    int w = Math.min(BRICK_SIZE, cx - x);
+                    int h = Math.min(BRICK_SIZE, cy - y);
+                    int d = Math.min(BRICK_SIZE, cz - z);
+                    if( w < BRICK_SIZE || h < BRICK_SIZE ) {
+                        // Keep the brick layout for the partial bricks
+                        // at the far edges
+                        for( int c = 0; c < d; c++ ) {
+                            for( int b = 0; b < h; b++ ) {
+                                source.sample(xBase + x, yBase + y + b, zBase + z + c, w, 1, 1,
+                                              brick.values, valueIndex(0, b, c));
+                            }
+                        }
+                    } else {
+                        source.sample(xBase + x, yBase + y, zBase + z, w, h, d, brick.values, 0);
+                    }
+                    table[brickIndex(i, j, k)] = finish(brick, i, j, k);
+                }
+            }
+        }
+        // Every brick was just replaced by a finished one
+        dirtyCount = 0;
+    }
+
+    /**
+     *  Returns an immutable snapshot of the current values.  Later edits
+     *  of this volume do not change the snapshot.
+     */
+    public Snapshot snapshot() {
+        for( int i = 0; i < dirtyCount; i++ ) {
+            int index = dirty[i];
+            int z = index / (bx * by);
+            int y = (index / bx) % by;
+            int x = index % bx;
+            table[index].dirty = false;
+            table[index] = finish(table[index], x, y, z);
+        }
+        dirtyCount = 0;
+
+        Snapshot result = new Snapshot(this, table, version);
+        // Everything up to here is now frozen
+        version++;
+        return result;
+    }
+
+    /**
+     *  Makes sure that the brick table is not shared with a snapshot.
+     */
+    private void ensureTable() {
+        if( tableVersion != version ) {
+            table = table.clone();
+            tableVersion = version;
+            live = new Snapshot(this, table, version);
+        }
+    }
+
+    /**
+     *  Calculates the range of the specified brick and returns it, or a
+     *  constant brick if all of its values are the same.
+     */
+    private Brick finish( Brick brick, int x, int y, int z ) {
+        float[] values = brick.values;
+        int xEnd = Math.min(BRICK_SIZE, cx - (x << BRICK_SHIFT));
+        int yEnd = Math.min(BRICK_SIZE, cy - (y << BRICK_SHIFT));
+        int zEnd = Math.min(BRICK_SIZE, cz - (z << BRICK_SHIFT));
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for( int k = 0; k < zEnd; k++ ) {
+            for( int j = 0; j < yEnd; j++ ) {
+                for( int i = valueIndex(0, j, k), end = i + xEnd; i < end; i++ ) {
+                    float d = values[i];
+                    if( d < min ) {
+                        min = d;
+                    }
+                    if( d > max ) {
+                        max = d;
+                    }
+                }
+            }
+        }
+        if( min == max ) {
+            return new Brick(brick.version, min);
+        }
+        brick.min = min;
+        brick.max = max;
+        return brick;
+    }
+
+    private int brickIndex( int x, int y, int z ) {
+        return (z * by + y) * bx + x;
+    }
+
+    private static int valueIndex( int x, int y, int z ) {
+        return (((z << BRICK_SHIFT) + y) << BRICK_SHIFT) + x;
+    }
+
+    public void setDensity( int x, int y, int z, float d ) {
+        int index = brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT);
+        Brick brick = table[index];
+        if( brick.values == null || brick.version != version ) {
+            // Constant and frozen bricks are never written
+            if( brick.values == null && brick.constant == d ) {
+                return;
+            }
+            brick = brick.copy(version);
+            ensureTable();
+            table[index] = brick;
+        }
+        brick.values[valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK)] = d;
+        if( !brick.dirty ) {
+            brick.dirty = true;
+            if( dirtyCount == dirty.length ) {
+                dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+            }
+            dirty[dirtyCount++] = index;
+        }
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        return live.getDensity(x, y, z);
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        return live.getDensity(x, y, z);
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        return live.getFieldDirection(x, y, z, target);
+    }
+
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        live.sample(xBase, yBase, zBase, width, height, depth, out, offset);
+    }
+
+    /**
+     *  One version of a brick, either a constant or an array of values.
+     *  Constant bricks and bricks of an older version than the volume's
+     *  are frozen and never change again.
+     */
+    private static final class Brick {
+        private final long version;
+        private final float[] values;
+        private final float constant;
+        private float min;
+        private float max;
+        private boolean dirty;
+
+        public Brick( long version, float constant ) {
+            this.version = version;
+            this.values = null;
+            this.constant = constant;
+            this.min = constant;
+            this.max = constant;
+        }
+
+        public Brick( long version, float[] values ) {
+            this.version = version;
+            this.values = values;
+            this.constant = 0;
+        }
+
+        public Brick copy( long newVersion ) {
+            float[] copy;
+            if( values == null ) {
+                copy = new float[BRICK_VALUES];
+                Arrays.fill(copy, constant);
+            } else {
+                copy = values.clone();
+            }
+            return new Brick(newVersion, copy);
+        }
+    }
+
+    /**
+     *  An immutable version of a VersionedDensityVolume that can be read
+     *  from any number of threads without locking.  Density ranges are
+     *  answered from the ranges of its bricks, which were calculated when
+     *  the snapshot was taken.  Intercell sampling is done using
+     *  trilinear interpolation.
+     */
+    public static final class Snapshot implements RangedDensityVolume {
+
+        private final Brick[] table;
+        private final long version;
+        private final int cx, cy, cz;
+        private final int bx, by;
+
+        private Snapshot( VersionedDensityVolume volume, Brick[] table, long version ) {
+            this.table = table;
+            this.version = version;
+            this.cx = volume.cx;
+            this.cy = volume.cy;
+            this.cz = volume.cz;
+            this.bx = volume.bx;
+            this.by = volume.by;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int getWidth() {
+            return cx;
+        }
+
+        public int getHeight() {
+            return cy;
+        }
+
+        public int getDepth() {
+            return cz;
+        }
+
+        private int brickIndex( int x, int y, int z ) {
+            return (z * by + y) * bx + x;
+        }
+
+        @Override
+        public float getDensity( int x, int y, int z ) {
+            Brick brick = table[brickIndex(x >> BRICK_SHIFT, y >> BRICK_SHIFT, z >> BRICK_SHIFT)];
+            if( brick.values == null ) {
+                return brick.constant;
+            }
+            return brick.values[valueIndex(x & BRICK_MASK, y & BRICK_MASK, z & BRICK_MASK)];
+        }
+
+        /**
+         *  Copies the densities of the specified box of corners a brick
+         *  row at a time, filling the rows of constant bricks.
+         */
+        @Override
+        public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                            float[] out, int offset ) {
+            int index = offset;
+            int xEnd = xBase + width;
+            for( int z = zBase; z < zBase + depth; z++ ) {
+                for( int y = yBase; y < yBase + height; y++ ) {
+                    int rowBricks = (z >> BRICK_SHIFT) * by + (y >> BRICK_SHIFT);
+                    int rowValues = valueIndex(0, y & BRICK_MASK, z & BRICK_MASK);
+                    for( int x = xBase; x < xEnd; ) {
+                        Brick brick = table[rowBricks * bx + (x >> BRICK_SHIFT)];
+                        int count = Math.min(BRICK_SIZE - (x & BRICK_MASK), xEnd - x);
+                        if( brick.values == null ) {
+                            Arrays.fill(out, index, index + count, brick.constant);
+                        } else {
+                            System.arraycopy(brick.values, rowValues + (x & BRICK_MASK), out, index, count);
+                        }
+                        index += count;
+                        x += count;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public float[] getDensityRange( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] store ) {
+            if( store == null ) {
+                store = new float[2];
+            }
+
+            int xStart = Math.max(x, 0);
+            int yStart = Math.max(y, 0);
+            int zStart = Math.max(z, 0);
+            int xEnd = Math.min(x + sizeX, cx) - 1;
+            int yEnd = Math.min(y + sizeY, cy) - 1;
+            int zEnd = Math.min(z + sizeZ, cz) - 1;
+
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            if( xEnd >= xStart && yEnd >= yStart && zEnd >= zStart ) {
+                for( int k = zStart >> BRICK_SHIFT; k <= zEnd >> BRICK_SHIFT; k++ ) {
+                    for( int j = yStart >> BRICK_SHIFT; j <= yEnd >> BRICK_SHIFT; j++ ) {
+                        for( int i = xStart >> BRICK_SHIFT; i <= xEnd >> BRICK_SHIFT; i++ ) {
+                            Brick brick = table[brickIndex(i, j, k)];
+                            min = Math.min(min, brick.min);
+                            max = Math.max(max, brick.max);
+                        }
+                    }
+                }
+            }
+            store[0] = min;
+            store[1] = max;
+            return store;
+        }
+
+        private double trilinear( float x, float y, float z ) {
+            int xBase = (int)Math.floor(x);
+            int yBase = (int)Math.floor(y);
+            int zBase = (int)Math.floor(z);
+            int xTop = (int)Math.ceil(x);
+            int yTop = (int)Math.ceil(y);
+            int zTop = (int)Math.ceil(z);
+
+            double c000 = getDensity(xBase, yBase, zBase);
+            double c100 = getDensity(xTop, yBase, zBase);
+            double c101 = getDensity(xTop, yBase, zTop);
+            double c001 = getDensity(xBase, yBase, zTop);
+            double c010 = getDensity(xBase, yTop, zBase);
+            double c110 = getDensity(xTop, yTop, zBase);
+            double c111 = getDensity(xTop, yTop, zTop);
+            double c011 = getDensity(xBase, yTop, zTop);
+
+            double xPart = x - xBase;
+            double cx00 = c000 + (c100 - c000) * xPart;
+            double cx01 = c001 + (c101 - c001) * xPart;
+
+            double cx10 = c010 + (c110 - c010) * xPart;
+            double cx11 = c011 + (c111 - c011) * xPart;
+
+            double yPart = y - yBase;
+            double cxy0 = cx00 + (cx10 - cx00) * yPart;
+            double cxy1 = cx01 + (cx11 - cx01) * yPart;
+
+            double zPart = z - zBase;
+            return cxy0 + (cxy1 - cxy0) * zPart;
+        }
+
+        @Override
+        public float getDensity( float x, float y, float z ) {
+            return (float)trilinear(x, y, z);
+        }
+
+        @Override
+        public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+
+            float d = 1f;
+
+            double nx = trilinear(x + d, y, z)
+                    - trilinear(x - d, y, z);
+            double ny = trilinear(x, y + d, z)
+                    - trilinear(x, y - d, z);
+            double nz = trilinear(x, y, z + d)
+                    - trilinear(x, y, z - d);
+
+            if( target == null ) {
+                target = new Vector3f((float)-nx, (float)-ny, (float)-nz).normalizeLocal();
+            } else {
+                target.set((float)-nx, (float)-ny, (float)-nz);
+                target.normalizeLocal();
+            }
+
+            return target;
+        }
+    }
+}
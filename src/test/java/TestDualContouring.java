@@ -0,0 +1,142 @@
+import com.jayfella.mesh.marchingcubes.DensityVolume;
+import com.jayfella.mesh.DualContouringMeshGenerator;
+import com.jme3.app.SimpleApplication;
+import com.jme3.light.AmbientLight;
+import com.jme3.light.DirectionalLight;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.system.AppSettings;
+
+public class TestDualContouring extends SimpleApplication {
+
+    public static void main(String... args) {
+
+        TestDualContouring testDualContouring = new TestDualContouring();
+
+        AppSettings appSettings = new AppSettings(true);
+        appSettings.setResolution(1280, 720);
+        appSettings.setAudioRenderer(null);
+
+        testDualContouring.setSettings(appSettings);
+        testDualContouring.setShowSettings(false);
+        testDualContouring.start();
+    }
+
+    @Override
+    public void simpleInitApp() {
+
+        flyCam.setDragToRotate(true);
+        flyCam.setMoveSpeed(50);
+
+        // a ramp with a box on it. Dual Contouring places its vertexes using the field directions, so
+        // unlike a smooth noise field these hard edges and corners come out sharp instead of bevelled.
+        DensityVolume densityVolume = new BoxOnRampVolume();
+
+        // the size of the mesh we want to generate.
+        int[] meshSize = { 32, 32, 32 };
+
+        DualContouringMeshGenerator meshGenerator = new DualContouringMeshGenerator(meshSize[0], meshSize[1], meshSize[2]);
+
+        // collapse the cells of the flat faces into larger polygons.
+        meshGenerator.setSimplifyError(0.01f);
+
+        // generate the mesh. The volume is sampled directly so that the exact field directions are used.
+        Mesh mesh = meshGenerator.buildMesh(densityVolume);
+
+        // standard JME scene stuff.
+        Geometry geometry = new Geometry("Dual Contouring", mesh);
+        geometry.setMaterial(new Material(assetManager, "Common/MatDefs/Light/Lighting.j3md"));
+
+        // draw the triangles on top so that the collapsed faces can be seen.
+        Geometry wireframe = new Geometry("Dual Contouring Wireframe", mesh);
+        Material wireframeMaterial = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+        wireframeMaterial.setColor("Color", ColorRGBA.Black);
+        wireframeMaterial.getAdditionalRenderState().setWireframe(true);
+        wireframe.setMaterial(wireframeMaterial);
+
+        // add some light so we can see it better.
+        rootNode.addLight(new DirectionalLight(new Vector3f(-1, -1, -1).normalizeLocal(), ColorRGBA.White.clone()));
+        rootNode.addLight(new AmbientLight(new ColorRGBA(0.4f, 0.4f, 0.4f, 1.0f)));
+
+        rootNode.attachChild(geometry);
+        rootNode.attachChild(wireframe);
+
+        // look at it.
+        cam.setLocation(new Vector3f(-8, meshSize[1] * 0.75f, -8));
+        cam.lookAt(new Vector3f(meshSize[0] / 2f, meshSize[1] / 4f, meshSize[2] / 2f), Vector3f.UNIT_Y);
+
+    }
+
+    /**
+     * A ramp rising along x with a box standing on it. Values are the signed distance to the nearest surface,
+     * positive inside, and the field direction is the exact outward normal of the nearest face.
+     */
+    private static class BoxOnRampVolume implements DensityVolume {
+
+        private final Vector3f rampNormal = new Vector3f(-0.35f, 1, 0).normalizeLocal();
+        private final Vector3f boxCenter = new Vector3f(18.3f, 13.6f, 17.8f);
+        private final float boxHalfSize = 6;
+
+        private float ramp(float x, float y) {
+            return (4 + 0.35f * x - y) * rampNormal.y;
+        }
+
+        private float box(float x, float y, float z, Vector3f normal) {
+            float px = x - boxCenter.x;
+            float py = y - boxCenter.y;
+            float pz = z - boxCenter.z;
+
+            // the distance to each pair of faces, negative outside of them
+            float dx = boxHalfSize - Math.abs(px);
+            float dy = boxHalfSize - Math.abs(py);
+            float dz = boxHalfSize - Math.abs(pz);
+            float nearest = Math.min(dx, Math.min(dy, dz));
+
+            if (normal != null) {
+                if (nearest == dx) {
+                    normal.set(Math.signum(px), 0, 0);
+                } else if (nearest == dy) {
+                    normal.set(0, Math.signum(py), 0);
+                } else {
+                    normal.set(0, 0, Math.signum(pz));
+                }
+            }
+
+            if (nearest > 0) {
+                return nearest;
+            }
+
+            // outside of the box the distance is to the nearest point on its faces, edges or corners
+            float ox = Math.min(dx, 0);
+            float oy = Math.min(dy, 0);
+            float oz = Math.min(dz, 0);
+            return -FastMath.sqrt(ox * ox + oy * oy + oz * oz);
+        }
+
+        @Override
+        public float getDensity(int x, int y, int z) {
+            return getDensity((float) x, (float) y, (float) z);
+        }
+
+        @Override
+        public float getDensity(float x, float y, float z) {
+            return Math.max(ramp(x, y), box(x, y, z, null));
+        }
+
+        @Override
+        public Vector3f getFieldDirection(float x, float y, float z, Vector3f target) {
+            if (target == null) {
+                target = new Vector3f();
+            }
+            if (ramp(x, y) > box(x, y, z, target)) {
+                target.set(rampNormal);
+            }
+            return target;
+        }
+    }
+
+}
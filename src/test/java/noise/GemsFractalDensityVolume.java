@@ -105,6 +105,14 @@ public class GemsFractalDensityVolume implements DensityVolume {
     }
 
     protected float density( Vector3f loc ) {
+        return density(loc, new Vector3f());
+    }
+
+    /**
+     *  Calculates the density at loc, which is warped in place, using
+     *  temp for the rotated octave locations.
+     */
+    private float density( Vector3f loc, Vector3f temp ) {
 
         double density = -loc.y;
 
@@ -112,27 +120,37 @@ public class GemsFractalDensityVolume implements DensityVolume {
         warp(loc, 0.004, 8);
         //warp(loc, 0.001, 40);
 
-        Vector3f c0 = octaveMat0.mult(loc);
-        Vector3f c1 = octaveMat1.mult(loc);
-        Vector3f c2 = octaveMat2.mult(loc);
-        Vector3f c3 = octaveMat3.mult(loc);
-        Vector3f c4 = octaveMat4.mult(loc);
-        Vector3f c5 = octaveMat5.mult(loc);
-        Vector3f c6 = octaveMat6.mult(loc);
-        Vector3f c7 = octaveMat7.mult(loc);
-
-        density += getNoise(c0, 0.1600*1.021) * 0.32*1.16;
-        density += getNoise(c1, 0.0800*0.985) * 0.64*1.12;
-        density += getNoise(c2, 0.0400*1.051) * 1.28*1.08;
-        density += getNoise(c3, 0.0200*1.020) * 2.56*1.04;
-        density += getNoise(c4, 0.0100*0.968) * 5;
-        density += getNoise(c5, 0.0050*0.994) * 10;
-        density += getNoise(c6, 0.0025*1.045) * 20*0.9;
-        density += getNoise(c7, 0.0012*0.972) * 40*0.8;
+        density += getNoise(octaveMat0.mult(loc, temp), 0.1600*1.021) * 0.32*1.16;
+        density += getNoise(octaveMat1.mult(loc, temp), 0.0800*0.985) * 0.64*1.12;
+        density += getNoise(octaveMat2.mult(loc, temp), 0.0400*1.051) * 1.28*1.08;
+        density += getNoise(octaveMat3.mult(loc, temp), 0.0200*1.020) * 2.56*1.04;
+        density += getNoise(octaveMat4.mult(loc, temp), 0.0100*0.968) * 5;
+        density += getNoise(octaveMat5.mult(loc, temp), 0.0050*0.994) * 10;
+        density += getNoise(octaveMat6.mult(loc, temp), 0.0025*1.045) * 20*0.9;
+        density += getNoise(octaveMat7.mult(loc, temp), 0.0012*0.972) * 40*0.8;
 
         return (float)density;
     }
 
+    /**
+     *  Reads the box of corners with one pair of vectors instead of
+     *  allocating ten per corner as getDensity() does.
+     */
+    @Override
+    public void sample( int xBase, int yBase, int zBase, int width, int height, int depth,
+                        float[] out, int offset ) {
+        Vector3f loc = new Vector3f();
+        Vector3f temp = new Vector3f();
+        int index = offset;
+        for( int z = zBase; z < zBase + depth; z++ ) {
+            for( int y = yBase; y < yBase + height; y++ ) {
+                for( int x = xBase; x < xBase + width; x++ ) {
+                    out[index++] = density(loc.set(x, y, z), temp);
+                }
+            }
+        }
+    }
+
     public float getDensity( int x, int y, int z ) {
         return density(new Vector3f(x, y, z));
     }